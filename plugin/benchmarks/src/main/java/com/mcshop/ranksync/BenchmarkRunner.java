@@ -0,0 +1,146 @@
+package com.mcshop.ranksync;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Runs the benchmarks with the GC profiler, so every result has both a throughput and an allocation
+// rate, and compares them with a baseline recorded from an earlier run.
+//
+//   java -jar target/benchmarks.jar [--baseline=<file>] [--save-baseline] [JMH options]
+//
+// --save-baseline replaces the baseline with this run's results. Other arguments go to JMH.
+public class BenchmarkRunner {
+    private static final String RESULT_FILE = "target/jmh-result.json";
+    private static final String ALLOCATION_METRIC = "gc.alloc.rate.norm";
+
+    public static void main(String[] args) throws IOException, RunnerException, CommandLineOptionException {
+        Path baseline = Path.of("baseline.json");
+        boolean saveBaseline = false;
+        List<String> jmhArgs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--save-baseline")) {
+                saveBaseline = true;
+            } else if (arg.startsWith("--baseline=")) {
+                baseline = Path.of(arg.substring("--baseline=".length()));
+            } else {
+                jmhArgs.add(arg);
+            }
+        }
+
+        Path resultFile = Path.of(RESULT_FILE);
+        Files.createDirectories(resultFile.getParent());
+        Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(jmhArgs.toArray(new String[0])))
+            .addProfiler(GCProfiler.class)
+            .resultFormat(ResultFormatType.JSON)
+            .result(resultFile.toString())
+            .build();
+        Collection<RunResult> results = new Runner(options).run();
+
+        compare(results, readBaseline(baseline));
+        if (saveBaseline) {
+            Files.copy(resultFile, baseline, StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("Saved baseline to " + baseline);
+        }
+    }
+
+    private static void compare(Collection<RunResult> results, Map<String, double[]> baseline) {
+        System.out.println();
+        System.out.printf("%-70s %14s %8s %12s %8s%n", "Benchmark", "ops/s", "vs base", "B/op", "vs base");
+        for (RunResult result : results) {
+            String key = key(result.getParams().getBenchmark(), paramsOf(result));
+            double score = result.getPrimaryResult().getScore();
+            double allocated = allocationOf(result.getSecondaryResults());
+
+            double[] previous = baseline.get(key);
+            System.out.printf("%-70s %14.1f %8s %12.1f %8s%n", key,
+                score, previous != null ? change(score, previous[0]) : "-",
+                allocated, previous != null ? change(allocated, previous[1]) : "-");
+        }
+    }
+
+    private static Map<String, String> paramsOf(RunResult result) {
+        Map<String, String> params = new HashMap<>();
+        for (String name : result.getParams().getParamsKeys()) {
+            params.put(name, result.getParams().getParam(name));
+        }
+        return params;
+    }
+
+    private static double allocationOf(Map<String, Result> secondary) {
+        for (Map.Entry<String, Result> entry : secondary.entrySet()) {
+            // Older JMH versions prefix profiler metrics with a dot
+            if (entry.getKey().endsWith(ALLOCATION_METRIC)) {
+                return entry.getValue().getScore();
+            }
+        }
+        return Double.NaN;
+    }
+
+    // Reads a JMH JSON result file into benchmark key -> {ops/s, B/op}
+    private static Map<String, double[]> readBaseline(Path file) throws IOException {
+        Map<String, double[]> baseline = new HashMap<>();
+        if (!Files.exists(file)) {
+            System.out.println("No baseline at " + file + ", record one with --save-baseline");
+            return baseline;
+        }
+
+        JsonArray runs = JsonParser.parseString(Files.readString(file)).getAsJsonArray();
+        for (JsonElement element : runs) {
+            JsonObject run = element.getAsJsonObject();
+            Map<String, String> params = new HashMap<>();
+            if (run.has("params")) {
+                for (Map.Entry<String, JsonElement> param : run.getAsJsonObject("params").entrySet()) {
+                    params.put(param.getKey(), param.getValue().getAsString());
+                }
+            }
+
+            double allocated = Double.NaN;
+            if (run.has("secondaryMetrics")) {
+                for (Map.Entry<String, JsonElement> metric : run.getAsJsonObject("secondaryMetrics").entrySet()) {
+                    if (metric.getKey().endsWith(ALLOCATION_METRIC)) {
+                        allocated = metric.getValue().getAsJsonObject().get("score").getAsDouble();
+                    }
+                }
+            }
+            double score = run.getAsJsonObject("primaryMetric").get("score").getAsDouble();
+            baseline.put(key(run.get("benchmark").getAsString(), params), new double[]{score, allocated});
+        }
+        return baseline;
+    }
+
+    private static String key(String benchmark, Map<String, String> params) {
+        String name = benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1);
+        return params.isEmpty() ? name : name + new TreeMap<>(params);
+    }
+
+    private static String change(double current, double previous) {
+        if (Double.isNaN(current) || Double.isNaN(previous) || previous == 0) {
+            return "-";
+        }
+        return String.format("%+.1f%%", (current - previous) / previous * 100);
+    }
+}
@@ -0,0 +1,97 @@
+package com.mcshop.ranksync;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.slf4j.Logger;
+import org.slf4j.helpers.NOPLogger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// RankManager.processRankUpdate for an online player against a fake proxy, acknowledged at once in
+// place of the backend. Status writes go to an unreachable Supabase and are never flushed on a timer,
+// so the storage side and the rank manager are rebuilt every iteration: the status buffer, the
+// idempotency index and the pending grants start empty instead of growing across the run.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DispatchBenchmark {
+    private static final String CONFIG = "{"
+        + "\"supabaseUrl\": \"http://127.0.0.1:9\","
+        + "\"supabaseKey\": \"benchmark\","
+        + "\"statusFlushIntervalMillis\": 3600000"
+        + "}";
+
+    private final AtomicLong purchases = new AtomicLong();
+    private Path dataDirectory;
+    private Logger logger;
+    private FakeProxy proxy;
+    private RankSyncVelocity plugin;
+    private ConfigManager config;
+    private SupabaseManager supabase;
+    private RankCommandDispatcher dispatcher;
+    private DispatchTracker tracker;
+    private RankManager rankManager;
+    private String username;
+
+    @Setup
+    public void setUp() throws IOException {
+        dataDirectory = Files.createTempDirectory("ranksync-benchmark");
+        Files.writeString(dataDirectory.resolve("config.json"), CONFIG);
+
+        logger = NOPLogger.NOP_LOGGER;
+        username = "Steve";
+        proxy = new FakeProxy(username);
+        plugin = new RankSyncVelocity(proxy.getServer(), logger, dataDirectory);
+
+        config = new ConfigManager(dataDirectory);
+        config.loadConfig();
+        dispatcher = new RankCommandDispatcher(proxy.getServer(), logger, "targeted", plugin.getMetrics());
+        tracker = new DispatchTracker(dispatcher, logger);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        supabase = new SupabaseManager(plugin, config);
+        rankManager = new RankManager(proxy.getServer(), logger, supabase, tracker, plugin.getMetrics());
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() {
+        // Fails whatever statuses the unreachable Supabase left in the buffer
+        supabase.close();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        tracker.close();
+        dispatcher.close();
+        try (Stream<Path> files = Files.walk(dataDirectory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public Boolean processRankUpdate() {
+        String purchaseId = "benchmark-" + purchases.incrementAndGet();
+        CompletableFuture<Boolean> result = rankManager.processRankUpdate(
+            new RankUpdate(username, "VIP", purchaseId, System.currentTimeMillis()));
+        tracker.acknowledge(new RankAck(purchaseId, true, ""));
+        return result.join();
+    }
+}
@@ -0,0 +1,298 @@
+package com.mcshop.ranksync;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// In-memory stand-in for the PostgREST endpoints SupabaseManager uses: insert, pending select and
+// applied update on rank_updates, and the status update on purchases. Like PostgREST it refuses
+// columns the schema in website/database/init.sql does not have, and purchase statuses its CHECK
+// does not allow. Every request waits the configured latency and fails with the configured probability.
+final class FakePostgrest {
+    private static final String PREFIX = "/rest/v1/";
+    private static final Set<String> RANK_UPDATE_COLUMNS =
+        Set.of("id", "username", "rank", "purchase_id", "status", "created_at", "applied_at");
+    private static final Set<String> PURCHASE_COLUMNS = Set.of("id", "user_id", "rank_name", "price", "status",
+        "purchase_id", "message", "created_at", "updated_at");
+    private static final Set<String> PURCHASE_STATUSES = Set.of("pending", "completed", "failed");
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double errorRate;
+    private final Gson gson = new Gson();
+
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<String, Map<String, Object>> rankUpdates = new ConcurrentHashMap<>();
+    private final Map<String, JsonObject> purchases = new ConcurrentHashMap<>();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder injectedErrors = new LongAdder();
+    private final LongAdder rankUpdateRows = new LongAdder();
+    private final LongAdder statusRows = new LongAdder();
+
+    FakePostgrest(int threads, long latencyMillis, long jitterMillis, double errorRate) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.errorRate = errorRate;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "FakePostgrest-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.createContext(PREFIX, this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    long getRequests() {
+        return requests.sum();
+    }
+
+    long getInjectedErrors() {
+        return injectedErrors.sum();
+    }
+
+    long getRankUpdateRows() {
+        return rankUpdateRows.sum();
+    }
+
+    long getStatusRows() {
+        return statusRows.sum();
+    }
+
+    int getPurchaseCount() {
+        return purchases.size();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.increment();
+        try {
+            long delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                injectedErrors.increment();
+                send(exchange, 503, "{\"code\":\"PGRST000\",\"message\":\"Injected failure\"}");
+                return;
+            }
+
+            String table = exchange.getRequestURI().getPath().substring(PREFIX.length());
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String method = exchange.getRequestMethod().toUpperCase();
+            if (table.equals("rank_updates") && method.equals("POST")) {
+                insertRankUpdates(exchange);
+            } else if (table.equals("rank_updates") && method.equals("GET")) {
+                selectPending(exchange, query);
+            } else if (table.equals("rank_updates") && method.equals("PATCH")) {
+                markApplied(exchange, query);
+            } else if (table.equals("purchases") && method.equals("PATCH")) {
+                updatePurchases(exchange, query);
+            } else {
+                send(exchange, 404, "{\"message\":\"Unknown endpoint " + method + " " + table + "\"}");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, "{\"message\":\"Shutting down\"}");
+        } catch (RuntimeException e) {
+            send(exchange, 400, gson.toJson(Map.of("message", String.valueOf(e.getMessage()))));
+        }
+    }
+
+    private void insertRankUpdates(HttpExchange exchange) throws IOException {
+        for (JsonObject row : readRows(exchange, RANK_UPDATE_COLUMNS)) {
+            Map<String, Object> stored = new HashMap<>();
+            stored.put("id", nextId.incrementAndGet());
+            stored.put("username", row.get("username").getAsString());
+            stored.put("rank", row.get("rank").getAsString());
+            stored.put("purchase_id", row.get("purchase_id").getAsString());
+            stored.put("status", row.get("status").getAsString());
+            stored.put("created_at", row.get("created_at").getAsLong());
+            rankUpdates.put((String) stored.get("purchase_id"), stored);
+            rankUpdateRows.increment();
+        }
+        send(exchange, 201, "[]");
+    }
+
+    // purchase_id=in.(...); every purchase is treated as if the storefront had already created its row
+    private void updatePurchases(HttpExchange exchange, Map<String, String> query) throws IOException {
+        String in = value(query.get("purchase_id"), "in.(");
+        if (in == null) {
+            send(exchange, 400, "{\"message\":\"Expected a purchase_id=in.(...) filter\"}");
+            return;
+        }
+        JsonObject update = readRows(exchange, PURCHASE_COLUMNS).get(0);
+        if (update.has("status") && !PURCHASE_STATUSES.contains(update.get("status").getAsString())) {
+            send(exchange, 400, gson.toJson(Map.of("code", "23514",
+                "message", "new row for relation \"purchases\" violates check constraint \"purchases_status_check\"")));
+            return;
+        }
+        for (String purchaseId : inValues(in)) {
+            purchases.put(purchaseId, update);
+            statusRows.increment();
+        }
+        send(exchange, 204, "");
+    }
+
+    private void markApplied(HttpExchange exchange, Map<String, String> query) throws IOException {
+        String purchaseId = value(query.get("purchase_id"), "eq.");
+        readRows(exchange, RANK_UPDATE_COLUMNS);
+        Map<String, Object> row = purchaseId != null ? rankUpdates.get(purchaseId) : null;
+        if (row != null) {
+            synchronized (row) {
+                row.put("status", "applied");
+            }
+        }
+        send(exchange, 204, "");
+    }
+
+    // status=eq.pending, optional username=in.(...), or=(created_at.gt.X,and(created_at.eq.X,id.gt.Y)), limit=N
+    private void selectPending(HttpExchange exchange, Map<String, String> query) throws IOException {
+        String status = value(query.get("status"), "eq.");
+        Set<String> usernames = null;
+        String in = value(query.get("username"), "in.(");
+        if (in != null) {
+            usernames = new HashSet<>(inValues(in));
+        }
+        long afterCreatedAt = Long.MIN_VALUE;
+        long afterId = Long.MIN_VALUE;
+        String cursor = query.get("or");
+        if (cursor != null) {
+            // Only the cursor shape PendingCursor.toFilter produces
+            String[] numbers = cursor.replaceAll("[^0-9-]+", " ").trim().split(" ");
+            afterCreatedAt = Long.parseLong(numbers[0]);
+            afterId = Long.parseLong(numbers[numbers.length - 1]);
+        }
+        int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : Integer.MAX_VALUE;
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Map<String, Object> row : rankUpdates.values()) {
+            synchronized (row) {
+                long createdAt = (Long) row.get("created_at");
+                long id = (Long) row.get("id");
+                boolean after = createdAt > afterCreatedAt || (createdAt == afterCreatedAt && id > afterId);
+                if (after && (status == null || status.equals(row.get("status")))
+                        && (usernames == null || usernames.contains((String) row.get("username")))) {
+                    rows.add(new HashMap<>(row));
+                }
+            }
+        }
+        rows.sort(Comparator.<Map<String, Object>>comparingLong(row -> (Long) row.get("created_at"))
+            .thenComparingLong(row -> (Long) row.get("id")));
+        send(exchange, 200, gson.toJson(rows.subList(0, Math.min(limit, rows.size()))));
+    }
+
+    // Unknown columns fail the whole request, as PostgREST does
+    private List<JsonObject> readRows(HttpExchange exchange, Set<String> columns) throws IOException {
+        JsonElement body = JsonParser.parseString(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+        List<JsonObject> rows = new ArrayList<>();
+        if (body.isJsonArray()) {
+            JsonArray array = body.getAsJsonArray();
+            for (JsonElement element : array) {
+                rows.add(element.getAsJsonObject());
+            }
+        } else {
+            rows.add(body.getAsJsonObject());
+        }
+        for (JsonObject row : rows) {
+            for (String column : row.keySet()) {
+                if (!columns.contains(column)) {
+                    throw new IllegalArgumentException("Could not find the '" + column + "' column");
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                query.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+
+    // Values of an in.(...) operand after "in.(", unquoting "..." values with backslash escapes
+    private static List<String> inValues(String operand) {
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < operand.length(); i++) {
+            char c = operand.charAt(i);
+            if (quoted && c == '\\' && i + 1 < operand.length()) {
+                value.append(operand.charAt(++i));
+            } else if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && (c == ',' || c == ')')) {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        return values;
+    }
+
+    private static String value(String filter, String operator) {
+        return filter != null && filter.startsWith(operator) ? filter.substring(operator.length()) : null;
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } else {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.mcshop.ranksync;
+
+import com.velocitypowered.api.event.EventManager;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ProxyServer;
+import com.velocitypowered.api.proxy.ServerConnection;
+import com.velocitypowered.api.proxy.messages.ChannelIdentifier;
+import com.velocitypowered.api.proxy.messages.ChannelRegistrar;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import com.velocitypowered.api.proxy.server.ServerInfo;
+import com.velocitypowered.api.scheduler.Scheduler;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+
+// Just enough of the Velocity API to run the plugin outside a proxy: one backend that every online
+// player is on. Plugin messages sent to the backend go to a handler; scheduled tasks never run.
+final class FakeProxy {
+    // Receives every plugin message the plugin sends to the backend
+    interface Backend {
+        void receive(ServerConnection connection, ChannelIdentifier channel, byte[] data);
+    }
+
+    // Computes an answer from the call's arguments
+    private interface Answer {
+        Object answer(Object[] args);
+    }
+
+    private final Predicate<String> online;
+    private final ServerConnection connection;
+    private final ProxyServer server;
+    private final Map<String, Player> players = new ConcurrentHashMap<>();
+    private final List<Object> listeners = new CopyOnWriteArrayList<>();
+
+    // A single online player, plugin messages are dropped
+    FakeProxy(String username) {
+        this(username::equals, (connection, channel, data) -> { });
+    }
+
+    FakeProxy(Predicate<String> online, Backend backend) {
+        this.online = online;
+        RegisteredServer[] registered = new RegisteredServer[1];
+        ServerConnection[] connected = new ServerConnection[1];
+        registered[0] = fake(RegisteredServer.class, Map.of(
+            "sendPluginMessage", (Answer) args -> {
+                backend.receive(connected[0], (ChannelIdentifier) args[0], (byte[]) args[1]);
+                return true;
+            },
+            "getServerInfo", new ServerInfo("lobby", InetSocketAddress.createUnresolved("localhost", 25566))
+        ));
+        connected[0] = fake(ServerConnection.class, Map.of("getServer", registered[0]));
+        this.connection = connected[0];
+
+        Scheduler.TaskBuilder taskBuilder = fake(Scheduler.TaskBuilder.class, Map.of());
+        this.server = fake(ProxyServer.class, Map.of(
+            "getPlayer", (Answer) args -> args[0] instanceof String
+                ? Optional.ofNullable(player((String) args[0]))
+                : Optional.empty(),
+            "getAllPlayers", (Answer) args -> onlinePlayers(),
+            "getAllServers", List.of(registered[0]),
+            "getScheduler", fake(Scheduler.class, Map.of("buildTask", taskBuilder)),
+            "getEventManager", fake(EventManager.class, Map.of("register", (Answer) args -> listeners.add(args[1]))),
+            "getChannelRegistrar", fake(ChannelRegistrar.class, Map.of())
+        ));
+    }
+
+    ProxyServer getServer() {
+        return server;
+    }
+
+    ServerConnection getConnection() {
+        return connection;
+    }
+
+    // Null when the player is offline
+    Player player(String username) {
+        if (!online.test(username)) {
+            return null;
+        }
+        return players.computeIfAbsent(username, name -> fake(Player.class, Map.of(
+            "getUsername", name,
+            "getUniqueId", UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)),
+            "getCurrentServer", Optional.of(connection)
+        )));
+    }
+
+    // Listeners the plugin registered with the event manager
+    <T> T listener(Class<T> type) {
+        for (Object listener : listeners) {
+            if (type.isInstance(listener)) {
+                return type.cast(listener);
+            }
+        }
+        throw new IllegalStateException(type.getSimpleName() + " was not registered");
+    }
+
+    private List<Player> onlinePlayers() {
+        List<Player> result = new ArrayList<>();
+        for (Player player : players.values()) {
+            if (online.test(player.getUsername())) {
+                result.add(player);
+            }
+        }
+        return result;
+    }
+
+    // Answers by method name; builder methods return the fake itself, anything else an empty value
+    private static <T> T fake(Class<T> type, Map<String, Object> answers) {
+        Object instance = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "Fake" + type.getSimpleName();
+                default:
+                    Object answer = answers.get(method.getName());
+                    if (answer instanceof Answer) {
+                        return ((Answer) answer).answer(args != null ? args : new Object[0]);
+                    }
+                    if (answer != null) {
+                        return answer;
+                    }
+                    return method.getReturnType().isInstance(proxy) ? proxy : empty(method);
+            }
+        });
+        return type.cast(instance);
+    }
+
+    private static Object empty(Method method) {
+        Class<?> returnType = method.getReturnType();
+        if (returnType == boolean.class) {
+            return false;
+        }
+        if (returnType == int.class || returnType == long.class) {
+            return returnType == int.class ? (Object) 0 : (Object) 0L;
+        }
+        if (returnType == Optional.class) {
+            return Optional.empty();
+        }
+        return null;
+    }
+}
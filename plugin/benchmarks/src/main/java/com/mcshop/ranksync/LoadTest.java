@@ -0,0 +1,326 @@
+package com.mcshop.ranksync;
+
+import com.velocitypowered.api.event.connection.PluginMessageEvent;
+import com.velocitypowered.api.event.proxy.ProxyInitializeEvent;
+import com.velocitypowered.api.proxy.ServerConnection;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// End-to-end load test of the proxy plugin: the real RankSyncVelocity on a fake proxy, talking to a
+// fake PostgREST, fed signed webhooks over HTTP. Online players' grants are acknowledged by a fake
+// backend; offline players' grants are stored. Prints throughput and backlogs every second, then
+// webhook latency percentiles, backlog growth and how long the backlogs take to drain.
+//
+//   java -cp target/benchmarks.jar com.mcshop.ranksync.LoadTest [--option=value ...]
+//
+// Options, with defaults: duration=60 (seconds), concurrency=32, players=1000, offline=0.2 (share of
+// players that are offline), db-latency-ms=10, db-jitter-ms=5, db-error-rate=0, db-threads=16,
+// apply-latency-ms=0 (backend time to apply a grant), webhook-port=18080, drain-timeout=60 (seconds),
+// storage-backend=supabase-java (or http)
+public class LoadTest {
+    private static final String SECRET = "load-test-secret";
+
+    private final Map<String, String> options;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder grantsApplied = new LongAdder();
+
+    private LoadTest(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --option=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new LoadTest(options).run();
+    }
+
+    private void run() throws Exception {
+        int duration = intOption("duration", 60);
+        int concurrency = intOption("concurrency", 32);
+        int players = intOption("players", 1000);
+        double offline = doubleOption("offline", 0.2);
+        int onlinePlayers = (int) Math.round(players * (1 - offline));
+        int webhookPort = intOption("webhook-port", 18080);
+        long applyLatency = intOption("apply-latency-ms", 0);
+
+        FakePostgrest postgrest = new FakePostgrest(intOption("db-threads", 16), intOption("db-latency-ms", 10),
+            intOption("db-jitter-ms", 5), doubleOption("db-error-rate", 0));
+        Path dataDirectory = Files.createTempDirectory("ranksync-loadtest");
+        Files.writeString(dataDirectory.resolve("config.json"), "{"
+            + "\"supabaseUrl\": \"" + postgrest.getUrl() + "\","
+            + "\"supabaseKey\": \"load-test\","
+            + "\"storageBackend\": \"" + stringOption("storage-backend", "supabase-java") + "\","
+            + "\"webhookPort\": " + webhookPort + ","
+            + "\"webhookSecret\": \"" + SECRET + "\""
+            + "}");
+
+        // Backend: applies every grant after the configured delay and acknowledges it
+        ScheduledExecutorService backendExecutor = Executors.newSingleThreadScheduledExecutor();
+        FakeProxy[] proxy = new FakeProxy[1];
+        proxy[0] = new FakeProxy(
+            username -> Integer.parseInt(username.substring("Player".length())) < onlinePlayers,
+            (connection, channel, frame) -> backendExecutor.schedule(() -> acknowledge(proxy[0], connection, frame), applyLatency, TimeUnit.MILLISECONDS));
+
+        RankSyncVelocity plugin = new RankSyncVelocity(proxy[0].getServer(), LoggerFactory.getLogger("RankSync"),
+            dataDirectory);
+        plugin.onProxyInitialization(new ProxyInitializeEvent());
+
+        System.out.printf("Load test: %ds, %d workers, %d players (%d online), PostgREST at %s%n",
+            duration, concurrency, players, onlinePlayers, postgrest.getUrl());
+
+        List<Worker> workers = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+        URI webhook = URI.create("http://127.0.0.1:" + webhookPort + "/webhook/purchase");
+        HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+        for (int i = 0; i < concurrency; i++) {
+            Worker worker = new Worker(client, webhook, players, deadline);
+            workers.add(worker);
+            Thread thread = new Thread(worker, "LoadTest-" + i);
+            thread.setDaemon(true);
+            worker.thread = thread;
+            thread.start();
+        }
+
+        Backlog start = Backlog.sample(plugin);
+        System.out.printf("%6s %10s %10s %10s %10s %10s %10s %10s %10s%n", "t(s)", "sent/s", "accepted/s", "applied/s",
+            "outbox", "statuses", "inserts", "storage", "db req/s");
+        long previousSent = 0;
+        long previousAccepted = 0;
+        long previousApplied = 0;
+        long previousDb = 0;
+        for (int second = 1; second <= duration; second++) {
+            Thread.sleep(1000);
+            Backlog backlog = Backlog.sample(plugin);
+            long sentNow = sent.sum();
+            long acceptedNow = accepted.sum();
+            long appliedNow = grantsApplied.sum();
+            long dbNow = postgrest.getRequests();
+            System.out.printf("%6d %10d %10d %10d %10d %10d %10d %10d %10d%n", second,
+                sentNow - previousSent, acceptedNow - previousAccepted, appliedNow - previousApplied,
+                backlog.outbox, backlog.statuses, backlog.inserts, backlog.storage, dbNow - previousDb);
+            previousSent = sentNow;
+            previousAccepted = acceptedNow;
+            previousApplied = appliedNow;
+            previousDb = dbNow;
+        }
+        for (Worker worker : workers) {
+            worker.thread.join();
+        }
+        Backlog end = Backlog.sample(plugin);
+
+        // How long the plugin needs to catch up once traffic stops
+        long drainStart = System.nanoTime();
+        long drainDeadline = drainStart + TimeUnit.SECONDS.toNanos(intOption("drain-timeout", 60));
+        Backlog remaining = end;
+        while (!remaining.isEmpty() && System.nanoTime() < drainDeadline) {
+            Thread.sleep(100);
+            remaining = Backlog.sample(plugin);
+        }
+        long drainMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - drainStart);
+
+        long[] latencies = merge(workers);
+        System.out.println();
+        System.out.printf("Webhooks:   %d sent, %d accepted, %d rejected, %d failed%n",
+            sent.sum(), accepted.sum(), rejected.sum(), failed.sum());
+        System.out.printf("Throughput: %.1f accepted/s, %.1f grants applied/s%n",
+            accepted.sum() / (double) duration, grantsApplied.sum() / (double) duration);
+        System.out.printf("Latency:    p50 %.2fms, p99 %.2fms, p999 %.2fms, max %.2fms%n",
+            percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999),
+            latencies.length > 0 ? latencies[latencies.length - 1] / 1000.0 : 0);
+        System.out.printf("Backlog growth per second: outbox %+.1f, statuses %+.1f, inserts %+.1f, storage %+.1f%n",
+            (end.outbox - start.outbox) / (double) duration, (end.statuses - start.statuses) / (double) duration,
+            (end.inserts - start.inserts) / (double) duration, (end.storage - start.storage) / (double) duration);
+        System.out.println(remaining.isEmpty()
+            ? "Backlogs drained in " + drainMillis + "ms"
+            : "Backlogs not drained after " + drainMillis + "ms: " + remaining);
+        System.out.printf("PostgREST:  %d requests, %d injected errors, %d rank_updates rows, %d status rows (%d purchases)%n",
+            postgrest.getRequests(), postgrest.getInjectedErrors(), postgrest.getRankUpdateRows(),
+            postgrest.getStatusRows(), postgrest.getPurchaseCount());
+
+        plugin.onDisable();
+        backendExecutor.shutdownNow();
+        postgrest.stop();
+    }
+
+    // What the Paper plugin does with a frame, minus LuckPerms
+    private void acknowledge(FakeProxy proxy, ServerConnection connection, byte[] frame) {
+        try {
+            List<RankAck> acks = new ArrayList<>();
+            for (RankOperation operation : RankSyncProtocol.decode(frame)) {
+                acks.add(new RankAck(operation.getPurchaseId(), true, ""));
+            }
+            grantsApplied.add(acks.size());
+            AckListener listener = proxy.listener(AckListener.class);
+            for (byte[] ackFrame : RankSyncProtocol.encodeAcks(acks)) {
+                listener.onPluginMessage(new PluginMessageEvent(connection, connection, AckListener.ACK_CHANNEL, ackFrame));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Backend could not decode a frame", e);
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final HttpClient client;
+        private final URI webhook;
+        private final int players;
+        private final long deadline;
+        private final Mac mac;
+        private long[] latencies = new long[1024];
+        private int latencyCount;
+        private Thread thread;
+
+        private Worker(HttpClient client, URI webhook, int players, long deadline) throws GeneralSecurityException {
+            this.client = client;
+            this.webhook = webhook;
+            this.players = players;
+            this.deadline = deadline;
+            this.mac = Mac.getInstance("HmacSHA256");
+            this.mac.init(new SecretKeySpec(SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < deadline) {
+                String username = "Player" + ThreadLocalRandom.current().nextInt(players);
+                byte[] body = ("{\"username\":\"" + username + "\",\"rank\":\"VIP\",\"purchaseId\":\""
+                    + UUID.randomUUID() + "\"}").getBytes(StandardCharsets.UTF_8);
+                String timestamp = Long.toString(System.currentTimeMillis() / 1000);
+                mac.update((timestamp + ".").getBytes(StandardCharsets.UTF_8));
+                String signature = "sha256=" + HexFormat.of().formatHex(mac.doFinal(body));
+
+                HttpRequest request = HttpRequest.newBuilder(webhook)
+                    .timeout(Duration.ofSeconds(30))
+                    .header(WebhookSignature.TIMESTAMP_HEADER, timestamp)
+                    .header(WebhookSignature.SIGNATURE_HEADER, signature)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                    .build();
+
+                long start = System.nanoTime();
+                sent.increment();
+                try {
+                    int status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+                    record((System.nanoTime() - start) / 1000);
+                    if (status == 202 || status == 200) {
+                        accepted.increment();
+                    } else {
+                        rejected.increment();
+                    }
+                } catch (IOException e) {
+                    failed.increment();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        private void record(long micros) {
+            if (latencyCount == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencies.length * 2);
+            }
+            latencies[latencyCount++] = micros;
+        }
+    }
+
+    // Queues that grow when the plugin cannot keep up
+    private static final class Backlog {
+        private final long outbox;
+        private final long statuses;
+        private final long inserts;
+        private final long storage;
+
+        private Backlog(long outbox, long statuses, long inserts, long storage) {
+            this.outbox = outbox;
+            this.statuses = statuses;
+            this.inserts = inserts;
+            this.storage = storage;
+        }
+
+        private static Backlog sample(RankSyncVelocity plugin) {
+            SupabaseManager supabase = plugin.getSupabaseManager();
+            StorageBackend storage = supabase.getStorageBackend();
+            return new Backlog(plugin.getOutboxReplayer().getQueuedCount(), supabase.getPendingStatusCount(),
+                supabase.getPendingInsertCount(), storage.getQueueDepth() + storage.getInFlight());
+        }
+
+        private boolean isEmpty() {
+            return outbox == 0 && statuses == 0 && inserts == 0 && storage == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "outbox " + outbox + ", statuses " + statuses + ", inserts " + inserts + ", storage " + storage;
+        }
+    }
+
+    private static long[] merge(List<Worker> workers) {
+        int total = 0;
+        for (Worker worker : workers) {
+            total += worker.latencyCount;
+        }
+        long[] merged = new long[total];
+        int offset = 0;
+        for (Worker worker : workers) {
+            System.arraycopy(worker.latencies, 0, merged, offset, worker.latencyCount);
+            offset += worker.latencyCount;
+        }
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    // In milliseconds, from sorted microseconds
+    private static double percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1000.0;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private double doubleOption(String name, double defaultValue) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+    }
+
+    private String stringOption(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+}
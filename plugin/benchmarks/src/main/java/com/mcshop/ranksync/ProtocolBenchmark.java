@@ -0,0 +1,60 @@
+package com.mcshop.ranksync;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Plugin message frames as the proxy encodes them and RankSyncPaper decodes and acknowledges them
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ProtocolBenchmark {
+    @Param({"1", "100"})
+    public int operationCount;
+
+    private List<RankOperation> operations;
+    private byte[] frame;
+
+    @Setup
+    public void setUp() throws IOException {
+        operations = new ArrayList<>(operationCount);
+        for (int i = 0; i < operationCount; i++) {
+            String username = "Player" + i;
+            operations.add(RankOperation.grant(UUID.nameUUIDFromBytes(username.getBytes()), username, "VIP",
+                UUID.randomUUID().toString()));
+        }
+        frame = RankSyncProtocol.encode(operations).get(0);
+    }
+
+    @Benchmark
+    public List<byte[]> encode() throws IOException {
+        return RankSyncProtocol.encode(operations);
+    }
+
+    @Benchmark
+    public List<RankOperation> decode() throws IOException {
+        return RankSyncProtocol.decode(frame);
+    }
+
+    // onPluginMessageReceived without LuckPerms: decode, then acknowledge every grant
+    @Benchmark
+    public List<byte[]> decodeAndAcknowledge() throws IOException {
+        List<RankOperation> decoded = RankSyncProtocol.decode(frame);
+        List<RankAck> acks = new ArrayList<>(decoded.size());
+        for (RankOperation operation : decoded) {
+            acks.add(new RankAck(operation.getPurchaseId(), true, ""));
+        }
+        return RankSyncProtocol.encodeAcks(acks);
+    }
+}
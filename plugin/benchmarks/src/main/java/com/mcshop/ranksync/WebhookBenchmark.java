@@ -0,0 +1,59 @@
+package com.mcshop.ranksync;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+
+// The per-request work of /webhook/purchase before anything is journaled
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class WebhookBenchmark {
+    private static final String SECRET = "benchmark-secret";
+
+    private byte[] body;
+    private String timestamp;
+    private String signature;
+    private WebhookSignature webhookSignature;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        body = ("{\"username\":\"Steve\",\"rank\":\"VIP\","
+            + "\"purchaseId\":\"3f2b9c1e-6a8d-4f7e-9b21-0c5d8e7a4f10\"}").getBytes(StandardCharsets.UTF_8);
+        timestamp = Long.toString(System.currentTimeMillis() / 1000);
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        mac.update((timestamp + ".").getBytes(StandardCharsets.UTF_8));
+        signature = "sha256=" + HexFormat.of().formatHex(mac.doFinal(body));
+
+        // Wide tolerance so the timestamp stays fresh for the whole run
+        webhookSignature = new WebhookSignature(SECRET, TimeUnit.DAYS.toSeconds(1));
+    }
+
+    @Benchmark
+    public RankUpdate readAndParse() throws IOException {
+        byte[] requestBody = WebhookListener.readRequestBody(new ByteArrayInputStream(body));
+        PurchaseRecord record = new PurchaseRecord();
+        record.readDocument(requestBody, 0, requestBody.length);
+        return record.toUpdate(System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public boolean verifySignature() {
+        return webhookSignature.verify(timestamp, signature, body, body.length);
+    }
+}
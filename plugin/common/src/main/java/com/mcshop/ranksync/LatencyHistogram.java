@@ -0,0 +1,90 @@
+package com.mcshop.ranksync;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Fixed-bucket latency histogram in milliseconds. Recording is lock-free; percentiles are
+// reported as the upper bound of the bucket they fall in.
+public class LatencyHistogram {
+    private static final long[] BUCKET_BOUNDS_MILLIS = {
+        1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10_000, 30_000, 60_000
+    };
+
+    private final String name;
+    private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_MILLIS.length + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMillis = new LongAdder();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long millis) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MILLIS.length && millis > BUCKET_BOUNDS_MILLIS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        count.increment();
+        sumMillis.add(Math.max(0, millis));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSumMillis() {
+        return sumMillis.sum();
+    }
+
+    // Upper bounds of all but the last bucket, which is unbounded
+    public static long[] getBucketBounds() {
+        return BUCKET_BOUNDS_MILLIS.clone();
+    }
+
+    public long[] getBucketCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    // Long.MAX_VALUE when the percentile falls in the unbounded bucket, -1 when nothing was recorded
+    public long percentile(double quantile) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long bucketCount : counts) {
+            total += bucketCount;
+        }
+        if (total == 0) {
+            return -1;
+        }
+
+        long target = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return BUCKET_BOUNDS_MILLIS[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public String summary() {
+        return name + ": count=" + getCount()
+            + " p50<=" + format(percentile(0.5))
+            + " p99<=" + format(percentile(0.99));
+    }
+
+    private static String format(long bound) {
+        return bound == Long.MAX_VALUE ? ">" + BUCKET_BOUNDS_MILLIS[BUCKET_BOUNDS_MILLIS.length - 1] + "ms" : bound + "ms";
+    }
+}
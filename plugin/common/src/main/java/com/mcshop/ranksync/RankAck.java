@@ -0,0 +1,26 @@
+package com.mcshop.ranksync;
+
+// A backend's answer to one operation, sent back on the ranksync:ack channel
+public final class RankAck {
+    private final String purchaseId;
+    private final boolean success;
+    private final String message;
+
+    public RankAck(String purchaseId, boolean success, String message) {
+        this.purchaseId = purchaseId;
+        this.success = success;
+        this.message = message;
+    }
+
+    public String getPurchaseId() {
+        return purchaseId;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+}
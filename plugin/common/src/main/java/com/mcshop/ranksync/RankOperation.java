@@ -0,0 +1,80 @@
+package com.mcshop.ranksync;
+
+import java.util.UUID;
+
+// One grant, revoke or query carried in a plugin channel frame
+public final class RankOperation {
+    public enum Type {
+        GRANT(1),
+        REVOKE(2),
+        QUERY(3);
+
+        private final int opcode;
+
+        Type(int opcode) {
+            this.opcode = opcode;
+        }
+
+        public int getOpcode() {
+            return opcode;
+        }
+
+        // Null for opcodes from a newer protocol revision
+        public static Type fromOpcode(int opcode) {
+            for (Type type : values()) {
+                if (type.opcode == opcode) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Type type;
+    private final UUID uuid;
+    private final String username;
+    private final String rankName;
+    private final String purchaseId;
+
+    public RankOperation(Type type, UUID uuid, String username, String rankName, String purchaseId) {
+        this.type = type;
+        this.uuid = uuid;
+        this.username = username;
+        this.rankName = rankName;
+        this.purchaseId = purchaseId;
+    }
+
+    public static RankOperation grant(UUID uuid, String username, String rankName, String purchaseId) {
+        return new RankOperation(Type.GRANT, uuid, username, rankName, purchaseId);
+    }
+
+    public static RankOperation revoke(UUID uuid, String username, String rankName) {
+        return new RankOperation(Type.REVOKE, uuid, username, rankName, "");
+    }
+
+    // Answered with an ack for requestId whose success says whether the player has the rank
+    public static RankOperation query(UUID uuid, String username, String rankName, String requestId) {
+        return new RankOperation(Type.QUERY, uuid, username, rankName, requestId);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    // Null when the proxy did not know the player's UUID
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getRankName() {
+        return rankName;
+    }
+
+    public String getPurchaseId() {
+        return purchaseId;
+    }
+}
@@ -0,0 +1,121 @@
+package com.mcshop.ranksync;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Counters, gauges and latency histograms rendered as Prometheus text: served on the proxy's
+// /metrics and written to metrics.prom on the backends.
+// Metrics are registered once and callers keep the returned LongAdder or histogram, so recording
+// is a lock-free add with no lookups or allocation.
+public class RankSyncMetrics {
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    // Labels are written as they appear in the exposition, e.g. code="202", or "" for none
+    public synchronized LongAdder counter(String name, String help, String labels) {
+        return (LongAdder) family(name, help, "counter").series.computeIfAbsent(labels, key -> new LongAdder());
+    }
+
+    public synchronized LatencyHistogram histogram(String name, String help, String labels) {
+        return (LatencyHistogram) family(name, help, "histogram").series
+            .computeIfAbsent(labels, key -> new LatencyHistogram(name));
+    }
+
+    // For histograms owned by another component
+    public synchronized void register(String name, String help, String labels, LatencyHistogram histogram) {
+        family(name, help, "histogram").series.put(labels, histogram);
+    }
+
+    // Sampled when scraped
+    public synchronized void gauge(String name, String help, String labels, LongSupplier value) {
+        family(name, help, "gauge").series.put(labels, value);
+    }
+
+    public String scrape() {
+        List<Family> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(families.size());
+            for (Family family : families.values()) {
+                snapshot.add(family.copy());
+            }
+        }
+
+        StringBuilder out = new StringBuilder(4096);
+        for (Family family : snapshot) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+                if (metric instanceof LongAdder) {
+                    sample(out, family.name, labels, ((LongAdder) metric).sum());
+                } else if (metric instanceof LongSupplier) {
+                    sample(out, family.name, labels, ((LongSupplier) metric).getAsLong());
+                } else {
+                    histogram(out, family.name, labels, (LatencyHistogram) metric);
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(name, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    // Buckets are cumulative and in seconds, as Prometheus expects
+    private static void histogram(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        long[] bounds = LatencyHistogram.getBucketBounds();
+        long[] counts = histogram.getBucketCounts();
+        String separator = labels.isEmpty() ? "" : ",";
+
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            String le = i < bounds.length ? Double.toString(bounds[i] / 1000.0) : "+Inf";
+            out.append(name).append("_bucket{").append(labels).append(separator)
+                .append("le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+        }
+        out.append(name).append("_sum").append(braces(labels)).append(' ')
+            .append(histogram.getSumMillis() / 1000.0).append('\n');
+        // From the buckets, so _count always matches the +Inf bucket
+        out.append(name).append("_count").append(braces(labels)).append(' ').append(cumulative).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name).append(braces(labels)).append(' ').append(value).append('\n');
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private static class Family {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final Map<String, Object> series;
+
+        private Family(String name, String help, String type) {
+            this(name, help, type, new LinkedHashMap<>());
+        }
+
+        private Family(String name, String help, String type, Map<String, Object> series) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.series = series;
+        }
+
+        private Family copy() {
+            return new Family(name, help, type, new LinkedHashMap<>(series));
+        }
+    }
+}
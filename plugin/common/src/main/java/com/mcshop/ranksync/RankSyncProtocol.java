@@ -0,0 +1,167 @@
+package com.mcshop.ranksync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+// Binary frames for the ranksync channels, shared by the proxy and the backend servers.
+//
+// Frame:     [byte version][short entry count][short entry length][entry]...
+// Operation: [byte opcode][long uuid msb][long uuid lsb][utf username][utf rank][utf purchase id]
+// Ack:       [byte success][utf purchase id][utf message]
+//
+// The entry length lets a reader skip entries and fields it does not know. A zero UUID means
+// "unknown, use the username".
+public final class RankSyncProtocol {
+    public static final String NAMESPACE = "ranksync";
+    public static final String COMMAND_NAME = "command";
+    public static final String ACK_NAME = "ack";
+    public static final String COMMAND_CHANNEL = NAMESPACE + ":" + COMMAND_NAME;
+    public static final String ACK_CHANNEL = NAMESPACE + ":" + ACK_NAME;
+    public static final int VERSION = 1;
+    // Plugin messages sent towards a backend server are capped at 32767 bytes
+    public static final int MAX_FRAME_BYTES = 32_000;
+
+    private static final int FRAME_HEADER_BYTES = 3;
+
+    private RankSyncProtocol() {
+    }
+
+    // Splits the operations into as few frames as fit under MAX_FRAME_BYTES
+    public static List<byte[]> encode(List<RankOperation> operations) throws IOException {
+        return encodeFrames(operations, RankSyncProtocol::writeOperation);
+    }
+
+    // Entries in an encoded frame; frames hold consecutive entries in order
+    public static int entryCount(byte[] frame) {
+        return (frame[1] & 0xFF) << 8 | frame[2] & 0xFF;
+    }
+
+    public static List<RankOperation> decode(byte[] frame) throws IOException {
+        return decodeFrame(frame, RankSyncProtocol::readOperation);
+    }
+
+    public static List<byte[]> encodeAcks(List<RankAck> acks) throws IOException {
+        return encodeFrames(acks, RankSyncProtocol::writeAck);
+    }
+
+    public static List<RankAck> decodeAcks(byte[] frame) throws IOException {
+        return decodeFrame(frame, RankSyncProtocol::readAck);
+    }
+
+    private static void writeOperation(DataOutputStream out, RankOperation op) throws IOException {
+        out.writeByte(op.getType().getOpcode());
+        UUID uuid = op.getUuid();
+        out.writeLong(uuid != null ? uuid.getMostSignificantBits() : 0);
+        out.writeLong(uuid != null ? uuid.getLeastSignificantBits() : 0);
+        out.writeUTF(op.getUsername());
+        out.writeUTF(op.getRankName());
+        out.writeUTF(op.getPurchaseId() != null ? op.getPurchaseId() : "");
+    }
+
+    // Null for opcodes from a newer protocol revision
+    private static RankOperation readOperation(DataInputStream in) throws IOException {
+        RankOperation.Type type = RankOperation.Type.fromOpcode(in.readUnsignedByte());
+        if (type == null) {
+            return null;
+        }
+
+        long mostSignificant = in.readLong();
+        long leastSignificant = in.readLong();
+        UUID uuid = mostSignificant == 0 && leastSignificant == 0
+            ? null
+            : new UUID(mostSignificant, leastSignificant);
+        return new RankOperation(type, uuid, in.readUTF(), in.readUTF(), in.readUTF());
+    }
+
+    private static void writeAck(DataOutputStream out, RankAck ack) throws IOException {
+        out.writeBoolean(ack.isSuccess());
+        out.writeUTF(ack.getPurchaseId());
+        out.writeUTF(ack.getMessage() != null ? ack.getMessage() : "");
+    }
+
+    private static RankAck readAck(DataInputStream in) throws IOException {
+        boolean success = in.readBoolean();
+        return new RankAck(in.readUTF(), success, in.readUTF());
+    }
+
+    private static <T> List<byte[]> encodeFrames(List<T> entries, EntryWriter<T> writer) throws IOException {
+        List<byte[]> frames = new ArrayList<>();
+        ByteArrayOutputStream bodies = new ByteArrayOutputStream(1024);
+        DataOutputStream bodyOut = new DataOutputStream(bodies);
+        ByteArrayOutputStream entryBytes = new ByteArrayOutputStream(128);
+        DataOutputStream entryOut = new DataOutputStream(entryBytes);
+        int count = 0;
+
+        for (T entry : entries) {
+            entryBytes.reset();
+            writer.write(entryOut, entry);
+            int size = Short.BYTES + entryBytes.size();
+            if (FRAME_HEADER_BYTES + size > MAX_FRAME_BYTES) {
+                throw new IOException("Entry of " + entryBytes.size() + " bytes does not fit in a frame");
+            }
+
+            if (FRAME_HEADER_BYTES + bodies.size() + size > MAX_FRAME_BYTES || count == 0xFFFF) {
+                frames.add(frame(bodies, count));
+                bodies.reset();
+                count = 0;
+            }
+            bodyOut.writeShort(entryBytes.size());
+            entryBytes.writeTo(bodyOut);
+            count++;
+        }
+
+        if (count > 0) {
+            frames.add(frame(bodies, count));
+        }
+        return frames;
+    }
+
+    private static <T> List<T> decodeFrame(byte[] frame, EntryReader<T> reader) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported ranksync protocol version " + version);
+        }
+
+        int count = in.readUnsignedShort();
+        List<T> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = in.readUnsignedShort();
+            if (length > in.available()) {
+                throw new IOException("Truncated ranksync frame");
+            }
+            int remainingAfter = in.available() - length;
+
+            T entry = reader.read(in);
+            if (entry != null) {
+                entries.add(entry);
+            }
+            // Unknown entries and fields appended by a later revision
+            in.skipNBytes(in.available() - remainingAfter);
+        }
+        return entries;
+    }
+
+    private static byte[] frame(ByteArrayOutputStream bodies, int count) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(FRAME_HEADER_BYTES + bodies.size());
+        DataOutputStream out = new DataOutputStream(frame);
+        out.writeByte(VERSION);
+        out.writeShort(count);
+        bodies.writeTo(out);
+        return frame.toByteArray();
+    }
+
+    private interface EntryWriter<T> {
+        void write(DataOutputStream out, T entry) throws IOException;
+    }
+
+    private interface EntryReader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+}
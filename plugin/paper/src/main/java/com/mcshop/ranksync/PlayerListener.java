@@ -1,9 +1,15 @@
 package com.mcshop.ranksync;
 
+import net.luckperms.api.model.user.User;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerRegisterChannelEvent;
+
+import java.util.UUID;
 
 public class PlayerListener implements Listener {
     private final RankSyncPaper plugin;
@@ -14,18 +20,30 @@ public class PlayerListener implements Listener {
 
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent event) {
-        // Update player's permissions when they join
-        plugin.getLuckPerms().getUserManager().loadUser(event.getPlayer().getUniqueId())
-            .thenAcceptAsync(user -> {
-                if (user != null) {
-                    plugin.getLuckPerms().getUserManager().saveUser(user);
-                }
-            });
+        // Later grants for this player resolve their UUID without a storage lookup. LuckPerms has
+        // already loaded the user during login, so nothing is loaded or saved on join.
+        plugin.getUuidCache().put(event.getPlayer().getName(), event.getPlayer().getUniqueId());
+    }
+
+    @EventHandler
+    public void onRegisterChannel(PlayerRegisterChannelEvent event) {
+        // Acknowledgements queued while the server was empty can go out over this player's connection
+        if (RankSyncProtocol.ACK_CHANNEL.equals(event.getChannel())) {
+            Player player = event.getPlayer();
+            Bukkit.getScheduler().runTask(plugin, () -> plugin.sendQueuedAcks(player));
+        }
     }
 
     @EventHandler
     public void onPlayerQuit(PlayerQuitEvent event) {
         // Clean up any resources if needed
-        plugin.getLuckPerms().getUserManager().cleanupUser(event.getPlayer().getUniqueId());
+        UUID uuid = event.getPlayer().getUniqueId();
+        plugin.getRankSetCache().invalidate(uuid);
+        // Again once the player is off the online list, for a set cached by a grant in between
+        Bukkit.getScheduler().runTask(plugin, () -> plugin.getRankSetCache().invalidate(uuid));
+        User user = plugin.getLuckPerms().getUserManager().getUser(uuid);
+        if (user != null) {
+            plugin.getLuckPerms().getUserManager().cleanupUser(user);
+        }
     }
 }
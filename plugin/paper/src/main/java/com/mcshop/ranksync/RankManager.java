@@ -11,144 +11,139 @@ import org.bukkit.entity.Player;
 
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public class RankManager {
+    // Users whose operations can be in progress at once
+    private static final int USER_STRIPES = 16;
+    // Changes to one user within this many ticks share a single save
+    private static final long SAVE_WINDOW_TICKS = 2;
+
     private final RankSyncPaper plugin;
     private final LuckPerms luckPerms;
+    private final UserOperationQueue userOperations = new UserOperationQueue(USER_STRIPES);
+    private final UuidCache uuidCache;
+    private final RankSetCache rankSetCache;
+    private final UserSaveCoalescer saveCoalescer;
 
-    public RankManager(RankSyncPaper plugin, LuckPerms luckPerms) {
+    public RankManager(RankSyncPaper plugin, LuckPerms luckPerms, UuidCache uuidCache, RankSetCache rankSetCache) {
         this.plugin = plugin;
         this.luckPerms = luckPerms;
+        this.uuidCache = uuidCache;
+        this.rankSetCache = rankSetCache;
+        this.saveCoalescer = new UserSaveCoalescer(plugin, luckPerms, userOperations, SAVE_WINDOW_TICKS);
     }
 
-    public void applyRank(String username, String rankName, String purchaseId) {
-        // Get player UUID
-        Player player = Bukkit.getPlayer(username);
-        UUID uuid = player != null ? player.getUniqueId() : null;
-
-        if (uuid == null) {
-            // Try to get UUID from LuckPerms
-            CompletableFuture<UUID> uuidFuture = luckPerms.getUserManager().lookupUniqueId(username);
-            try {
-                uuid = uuidFuture.get();
-            } catch (Exception e) {
-                plugin.getLogger().severe("Could not find UUID for player: " + username);
-                return;
-            }
-        }
-
+    // Completes with whether the rank was applied; uuid may be null when the proxy did not know it
+    public CompletableFuture<Boolean> applyRank(UUID uuid, String username, String rankName, String purchaseId) {
         // Check if rank exists
         Group rank = luckPerms.getGroupManager().getGroup(rankName);
         if (rank == null) {
             plugin.getLogger().severe("Rank does not exist: " + rankName);
-            return;
+            return CompletableFuture.completedFuture(false);
         }
 
-        // Load user data
-        User user = luckPerms.getUserManager().loadUser(uuid).join();
-        if (user == null) {
-            plugin.getLogger().severe("Could not load user data for: " + username);
-            return;
-        }
-
-        try {
+        return modifyUser(uuid, username, user -> {
             // Remove existing rank inheritance nodes
             user.data().clear(NodeType.INHERITANCE::matches);
 
             // Add new rank
             Node node = InheritanceNode.builder(rank).build();
             user.data().add(node);
-
-            // Save changes
-            luckPerms.getUserManager().saveUser(user);
-
-            // Update player if online
-            if (player != null) {
-                Bukkit.getScheduler().runTask(plugin, () -> {
-                    player.sendMessage("§aYour rank has been updated to §6" + rankName + "§a!");
-                });
+        }).thenApply(applied -> {
+            if (applied) {
+                notifyPlayer(username, "§aYour rank has been updated to §6" + rankName + "§a!");
+                plugin.getLogger().info("Successfully applied rank " + rankName + " to " + username);
             }
-
-            plugin.getLogger().info("Successfully applied rank " + rankName + " to " + username);
-        } catch (Exception e) {
-            plugin.getLogger().severe("Error applying rank " + rankName + " to " + username + ": " + e.getMessage());
-        }
+            return applied;
+        }).exceptionally(throwable -> {
+            plugin.getLogger().severe("Error applying rank " + rankName + " to " + username + ": " + throwable.getMessage());
+            return false;
+        });
     }
 
-    public void removeRank(String username, String rankName) {
-        // Get player UUID
-        Player player = Bukkit.getPlayer(username);
-        UUID uuid = player != null ? player.getUniqueId() : null;
-
-        if (uuid == null) {
-            // Try to get UUID from LuckPerms
-            CompletableFuture<UUID> uuidFuture = luckPerms.getUserManager().lookupUniqueId(username);
-            try {
-                uuid = uuidFuture.get();
-            } catch (Exception e) {
-                plugin.getLogger().severe("Could not find UUID for player: " + username);
-                return;
-            }
-        }
-
+    // Completes with whether the rank was removed
+    public CompletableFuture<Boolean> removeRank(UUID uuid, String username, String rankName) {
         // Check if rank exists
         Group rank = luckPerms.getGroupManager().getGroup(rankName);
         if (rank == null) {
             plugin.getLogger().severe("Rank does not exist: " + rankName);
-            return;
+            return CompletableFuture.completedFuture(false);
         }
 
-        // Load user data
-        User user = luckPerms.getUserManager().loadUser(uuid).join();
-        if (user == null) {
-            plugin.getLogger().severe("Could not load user data for: " + username);
-            return;
-        }
-
-        try {
+        return modifyUser(uuid, username, user -> {
             // Remove rank
             Node node = InheritanceNode.builder(rank).build();
             user.data().remove(node);
+        }).thenApply(removed -> {
+            if (removed) {
+                notifyPlayer(username, "§cYour rank §6" + rankName + " §chas been removed!");
+                plugin.getLogger().info("Successfully removed rank " + rankName + " from " + username);
+            }
+            return removed;
+        }).exceptionally(throwable -> {
+            plugin.getLogger().severe("Error removing rank " + rankName + " from " + username + ": " + throwable.getMessage());
+            return false;
+        });
+    }
 
-            // Save changes
-            luckPerms.getUserManager().saveUser(user);
+    // For online players; answered from the rank set cache without touching storage
+    public boolean hasRank(Player player, String rankName) {
+        return rankSetCache.hasRank(player.getUniqueId(), rankName);
+    }
 
-            // Update player if online
-            if (player != null) {
-                Bukkit.getScheduler().runTask(plugin, () -> {
-                    player.sendMessage("§cYour rank §6" + rankName + " §chas been removed!");
-                });
+    public CompletableFuture<Boolean> hasRank(UUID uuid, String username, String rankName) {
+        return resolveUniqueId(uuid, username)
+            .thenCompose(resolved -> {
+                if (resolved == null) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                if (luckPerms.getUserManager().isLoaded(resolved)) {
+                    return CompletableFuture.completedFuture(rankSetCache.hasRank(resolved, rankName));
+                }
+                return userOperations.submit(resolved, () -> luckPerms.getUserManager().loadUser(resolved)
+                    .thenApply(user -> user != null && rankSetCache.hasRank(user, rankName)));
+            })
+            .exceptionally(throwable -> false);
+    }
+
+    // Changes and saves the user, in order with every other operation on the same user
+    private CompletableFuture<Boolean> modifyUser(UUID uuid, String username, Consumer<User> change) {
+        return resolveUniqueId(uuid, username).thenCompose(resolved -> {
+            if (resolved == null) {
+                plugin.getLogger().severe("Could not find UUID for player: " + username);
+                return CompletableFuture.completedFuture(false);
             }
+            return saveCoalescer.submit(resolved, username, change);
+        });
+    }
 
-            plugin.getLogger().info("Successfully removed rank " + rankName + " from " + username);
-        } catch (Exception e) {
-            plugin.getLogger().severe("Error removing rank " + rankName + " from " + username + ": " + e.getMessage());
-        }
+    public UserSaveCoalescer getSaveCoalescer() {
+        return saveCoalescer;
     }
 
-    public boolean hasRank(String username, String rankName) {
-        // Get player UUID
-        Player player = Bukkit.getPlayer(username);
-        UUID uuid = player != null ? player.getUniqueId() : null;
-
-        if (uuid == null) {
-            // Try to get UUID from LuckPerms
-            CompletableFuture<UUID> uuidFuture = luckPerms.getUserManager().lookupUniqueId(username);
-            try {
-                uuid = uuidFuture.get();
-            } catch (Exception e) {
-                return false;
-            }
+    private CompletableFuture<UUID> resolveUniqueId(UUID uuid, String username) {
+        if (uuid != null) {
+            uuidCache.put(username, uuid);
+            return CompletableFuture.completedFuture(uuid);
         }
 
-        // Load user data
-        User user = luckPerms.getUserManager().loadUser(uuid).join();
-        if (user == null) {
-            return false;
+        Player player = Bukkit.getPlayerExact(username);
+        if (player != null) {
+            return CompletableFuture.completedFuture(player.getUniqueId());
         }
 
-        // Check if user has the rank
-        return user.getInheritedGroups(user.getQueryOptions()).stream()
-            .anyMatch(group -> group.getName().equals(rankName));
+        // Try the cache, then LuckPerms storage
+        return uuidCache.lookup(username);
+    }
+
+    private void notifyPlayer(String username, String message) {
+        // Update player if online
+        Bukkit.getScheduler().runTask(plugin, () -> {
+            Player player = Bukkit.getPlayerExact(username);
+            if (player != null) {
+                player.sendMessage(message);
+            }
+        });
     }
 }
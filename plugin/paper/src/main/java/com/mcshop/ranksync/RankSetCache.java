@@ -0,0 +1,101 @@
+package com.mcshop.ranksync;
+
+import net.luckperms.api.LuckPerms;
+import net.luckperms.api.model.group.Group;
+import net.luckperms.api.model.user.User;
+import org.bukkit.Bukkit;
+
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Read-through cache of each user's inherited ranks as an immutable bitset over dense rank IDs.
+// A cached check is a map lookup and a bit test; only online players are cached, and entries are
+// dropped when LuckPerms recalculates the user (or any group) and when the player quits.
+public class RankSetCache {
+    private final LuckPerms luckPerms;
+    private final ConcurrentHashMap<String, Integer> rankIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRankId = new AtomicInteger();
+    private final ConcurrentHashMap<UUID, long[]> rankSets = new ConcurrentHashMap<>();
+    // Bumped on every invalidation, so a set computed across one is not cached
+    private final AtomicLong generation = new AtomicLong();
+
+    public RankSetCache(LuckPerms luckPerms) {
+        this.luckPerms = luckPerms;
+    }
+
+    // False when the user is not loaded in LuckPerms, which for an online player does not happen
+    public boolean hasRank(UUID uuid, String rankName) {
+        long[] ranks = rankSets.get(uuid);
+        if (ranks == null) {
+            User user = luckPerms.getUserManager().getUser(uuid);
+            if (user == null) {
+                return false;
+            }
+            ranks = cache(user);
+        }
+        return contains(ranks, rankName);
+    }
+
+    // For users loaded from storage; offline users are computed each time and never cached
+    public boolean hasRank(User user, String rankName) {
+        long[] ranks = rankSets.get(user.getUniqueId());
+        if (ranks == null) {
+            ranks = cache(user);
+        }
+        return contains(ranks, rankName);
+    }
+
+    public void invalidate(UUID uuid) {
+        generation.incrementAndGet();
+        rankSets.remove(uuid);
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        rankSets.clear();
+    }
+
+    public int size() {
+        return rankSets.size();
+    }
+
+    private long[] cache(User user) {
+        long startGeneration = generation.get();
+        long[] ranks = new long[1];
+        for (Group group : user.getInheritedGroups(user.getQueryOptions())) {
+            int id = rankIds.computeIfAbsent(group.getName().toLowerCase(Locale.ROOT), name -> nextRankId.getAndIncrement());
+            if (id >= ranks.length * Long.SIZE) {
+                long[] grown = new long[id / Long.SIZE + 1];
+                System.arraycopy(ranks, 0, grown, 0, ranks.length);
+                ranks = grown;
+            }
+            ranks[id / Long.SIZE] |= 1L << id;
+        }
+
+        // Users loaded on demand for an offline player would otherwise stay here after LuckPerms unloads them
+        UUID uuid = user.getUniqueId();
+        if (Bukkit.getPlayer(uuid) != null) {
+            rankSets.put(uuid, ranks);
+            if (generation.get() != startGeneration) {
+                rankSets.remove(uuid, ranks);
+            }
+        }
+        return ranks;
+    }
+
+    private boolean contains(long[] ranks, String rankName) {
+        // LuckPerms group names are lowercase already
+        Integer id = rankIds.get(rankName);
+        if (id == null) {
+            id = rankIds.get(rankName.toLowerCase(Locale.ROOT));
+            if (id == null) {
+                return false;
+            }
+        }
+        int word = id / Long.SIZE;
+        return word < ranks.length && (ranks[word] & (1L << id)) != 0;
+    }
+}
@@ -1,6 +1,8 @@
 package com.mcshop.ranksync;
 
 import net.luckperms.api.LuckPerms;
+import net.luckperms.api.event.group.GroupDataRecalculateEvent;
+import net.luckperms.api.event.user.UserDataRecalculateEvent;
 import net.luckperms.api.model.group.Group;
 import net.luckperms.api.model.user.User;
 import net.luckperms.api.node.Node;
@@ -10,11 +12,43 @@ import org.bukkit.plugin.RegisteredServiceProvider;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.plugin.messaging.PluginMessageListener;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class RankSyncPaper extends JavaPlugin implements PluginMessageListener {
+    private static final int UUID_CACHE_MAX_ENTRIES = 10_000;
+    private static final long UUID_CACHE_TTL_MILLIS = TimeUnit.HOURS.toMillis(6);
+    private static final long UUID_CACHE_NEGATIVE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long METRICS_WRITE_INTERVAL_TICKS = 15 * 20;
+    private static final String METRICS_FILE = "metrics.prom";
+    private static final int MAX_QUEUED_ACKS = 1000;
+
     private LuckPerms luckPerms;
     private RankManager rankManager;
+    private UuidCache uuidCache;
+    private RankSetCache rankSetCache;
+    private final RankSyncMetrics metrics = new RankSyncMetrics();
+    private final Map<RankOperation.Type, OperationMetrics> operationMetrics = new EnumMap<>(RankOperation.Type.class);
+    private final LongAdder malformedFrames = metrics.counter("ranksync_frames_malformed_total",
+        "Plugin messages from the proxy that could not be decoded", "");
+    private final LongAdder acksSent = metrics.counter("ranksync_acks_sent_total",
+        "Grant acknowledgements sent to the proxy", "");
+    private final LongAdder acksDropped = metrics.counter("ranksync_acks_dropped_total",
+        "Acknowledgements dropped because too many were waiting for a player to carry them", "");
+    // Acknowledgements waiting for a player to join, only touched on the main thread
+    private final List<RankAck> queuedAcks = new ArrayList<>();
 
     @Override
     public void onEnable() {
@@ -26,24 +60,68 @@ public class RankSyncPaper extends JavaPlugin implements PluginMessageListener {
         }
 
         // Initialize rank manager
-        rankManager = new RankManager(this, luckPerms);
+        uuidCache = new UuidCache(luckPerms, UUID_CACHE_MAX_ENTRIES, UUID_CACHE_TTL_MILLIS, UUID_CACHE_NEGATIVE_TTL_MILLIS);
+        rankSetCache = new RankSetCache(luckPerms);
+        rankManager = new RankManager(this, luckPerms, uuidCache, rankSetCache);
+
+        // Cached rank sets are dropped whenever LuckPerms recalculates a user or a group
+        luckPerms.getEventBus().subscribe(this, UserDataRecalculateEvent.class,
+            event -> rankSetCache.invalidate(event.getUser().getUniqueId()));
+        luckPerms.getEventBus().subscribe(this, GroupDataRecalculateEvent.class,
+            event -> rankSetCache.invalidateAll());
 
         // Register plugin message channel
-        getServer().getMessenger().registerIncomingPluginChannel(this, "ranksync:command", this);
+        getServer().getMessenger().registerIncomingPluginChannel(this, RankSyncProtocol.COMMAND_CHANNEL, this);
+        getServer().getMessenger().registerOutgoingPluginChannel(this, RankSyncProtocol.ACK_CHANNEL);
 
         // Register event listeners
         getServer().getPluginManager().registerEvents(new PlayerListener(this), this);
 
+        // No HTTP server on the backend, so metrics go to a file for node_exporter's textfile collector
+        registerMetrics();
+        Bukkit.getScheduler().runTaskTimerAsynchronously(this, this::writeMetrics,
+            METRICS_WRITE_INTERVAL_TICKS, METRICS_WRITE_INTERVAL_TICKS);
+
         getLogger().info("RankSync Paper plugin has been enabled!");
     }
 
     @Override
     public void onDisable() {
-        // Unregister plugin message channel
+        // Unregister plugin message channels
         getServer().getMessenger().unregisterIncomingPluginChannel(this);
+        getServer().getMessenger().unregisterOutgoingPluginChannel(this);
+        if (rankManager != null) {
+            rankManager.getSaveCoalescer().close();
+            writeMetrics();
+            getLogger().info("Coalescing saved " + rankManager.getSaveCoalescer().getSavesAvoided() + " LuckPerms user save(s)");
+        }
         getLogger().info("RankSync Paper plugin has been disabled!");
     }
 
+    private void registerMetrics() {
+        for (RankOperation.Type type : RankOperation.Type.values()) {
+            operationMetrics.put(type, new OperationMetrics(metrics, type));
+        }
+        metrics.gauge("ranksync_uuid_cache_entries", "Cached username to UUID lookups", "", uuidCache::size);
+        metrics.gauge("ranksync_acks_queued", "Acknowledgements waiting for a player to carry them", "",
+            queuedAcks::size);
+        metrics.gauge("ranksync_luckperms_saves_avoided", "LuckPerms user saves merged into another save", "",
+            () -> rankManager.getSaveCoalescer().getSavesAvoided());
+    }
+
+    private void writeMetrics() {
+        Path target = getDataFolder().toPath().resolve(METRICS_FILE);
+        Path temp = target.resolveSibling(METRICS_FILE + ".tmp");
+        try {
+            Files.createDirectories(target.getParent());
+            Files.write(temp, metrics.scrape().getBytes(StandardCharsets.UTF_8));
+            // Atomic, so the collector never reads a half-written file
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            getLogger().warning("Could not write " + METRICS_FILE + ": " + e.getMessage());
+        }
+    }
+
     private boolean setupLuckPerms() {
         RegisteredServiceProvider<LuckPerms> provider = Bukkit.getServicesManager().getRegistration(LuckPerms.class);
         if (provider != null) {
@@ -55,31 +133,88 @@ public class RankSyncPaper extends JavaPlugin implements PluginMessageListener {
 
     @Override
     public void onPluginMessageReceived(String channel, Player player, byte[] message) {
-        if (!channel.equals("ranksync:command")) {
+        if (!channel.equals(RankSyncProtocol.COMMAND_CHANNEL)) {
             return;
         }
 
-        String command = new String(message);
-        String[] args = command.split(" ");
-
-        if (args.length < 4 || !args[0].equals("ranksync") || !args[1].equals("apply")) {
+        List<RankOperation> operations;
+        try {
+            operations = RankSyncProtocol.decode(message);
+        } catch (IOException e) {
+            malformedFrames.increment();
+            getLogger().warning("Ignoring malformed ranksync message: " + e.getMessage());
             return;
         }
 
-        String username = args[2];
-        String rankName = args[3];
-        String purchaseId = args[4];
+        // Operations run asynchronously and are acknowledged in one message once all have completed
+        List<CompletableFuture<Boolean>> results = new ArrayList<>(operations.size());
+        for (RankOperation operation : operations) {
+            results.add(handleOperation(operation));
+        }
 
-        // Process rank update asynchronously
-        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
-            try {
-                rankManager.applyRank(username, rankName, purchaseId);
-            } catch (Exception e) {
-                getLogger().severe("Error applying rank for " + username + ": " + e.getMessage());
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).thenRun(() -> {
+            List<RankAck> acks = new ArrayList<>();
+            for (int i = 0; i < operations.size(); i++) {
+                RankOperation operation = operations.get(i);
+                boolean success = results.get(i).join();
+                if (!operation.getPurchaseId().isEmpty()) {
+                    acks.add(new RankAck(operation.getPurchaseId(), success,
+                        success ? "" : "Could not apply rank " + operation.getRankName()));
+                }
+            }
+            if (!acks.isEmpty() && isEnabled()) {
+                Bukkit.getScheduler().runTask(this, () -> sendAcks(player, acks));
             }
         });
     }
 
+    private CompletableFuture<Boolean> handleOperation(RankOperation operation) {
+        UUID uuid = operation.getUuid();
+        String username = operation.getUsername();
+        String rankName = operation.getRankName();
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> result = switch (operation.getType()) {
+            case GRANT -> rankManager.applyRank(uuid, username, rankName, operation.getPurchaseId());
+            case REVOKE -> rankManager.removeRank(uuid, username, rankName);
+            case QUERY -> rankManager.hasRank(uuid, username, rankName);
+        };
+
+        OperationMetrics recorded = operationMetrics.get(operation.getType());
+        return result.whenComplete((success, throwable) -> recorded.record(start, throwable == null && success));
+    }
+
+    // Called once a joining player's connection listens on the ack channel
+    public void sendQueuedAcks(Player carrier) {
+        if (queuedAcks.isEmpty()) {
+            return;
+        }
+        List<RankAck> acks = new ArrayList<>(queuedAcks);
+        queuedAcks.clear();
+        sendAcks(carrier, acks);
+    }
+
+    private void sendAcks(Player carrier, List<RankAck> acks) {
+        // Plugin messages travel over a player connection; without one they wait for the next player to join
+        if (!carrier.isOnline()) {
+            carrier = getServer().getOnlinePlayers().stream().findFirst().orElse(null);
+            if (carrier == null) {
+                int kept = Math.min(MAX_QUEUED_ACKS - queuedAcks.size(), acks.size());
+                queuedAcks.addAll(acks.subList(0, kept));
+                acksDropped.add(acks.size() - kept);
+                return;
+            }
+        }
+
+        try {
+            for (byte[] frame : RankSyncProtocol.encodeAcks(acks)) {
+                carrier.sendPluginMessage(this, RankSyncProtocol.ACK_CHANNEL, frame);
+            }
+            acksSent.add(acks.size());
+        } catch (IOException e) {
+            getLogger().severe("Error encoding ranksync acks: " + e.getMessage());
+        }
+    }
+
     public LuckPerms getLuckPerms() {
         return luckPerms;
     }
@@ -87,4 +222,33 @@ public class RankSyncPaper extends JavaPlugin implements PluginMessageListener {
     public RankManager getRankManager() {
         return rankManager;
     }
+
+    public UuidCache getUuidCache() {
+        return uuidCache;
+    }
+
+    public RankSetCache getRankSetCache() {
+        return rankSetCache;
+    }
+
+    // For QUERY, "failed" means the player does not have the rank
+    private static class OperationMetrics {
+        private final LatencyHistogram latency;
+        private final LongAdder succeeded;
+        private final LongAdder failed;
+
+        private OperationMetrics(RankSyncMetrics metrics, RankOperation.Type type) {
+            String label = "type=\"" + type.name().toLowerCase(Locale.ROOT) + "\"";
+            String help = "Rank operations from the proxy, by type and result";
+            this.latency = metrics.histogram("ranksync_operation_seconds",
+                "Time to apply a rank operation through LuckPerms", label);
+            this.succeeded = metrics.counter("ranksync_operations_total", help, label + ",result=\"ok\"");
+            this.failed = metrics.counter("ranksync_operations_total", help, label + ",result=\"failed\"");
+        }
+
+        private void record(long startNanos, boolean success) {
+            latency.record((System.nanoTime() - startNanos) / 1_000_000);
+            (success ? succeeded : failed).increment();
+        }
+    }
 }
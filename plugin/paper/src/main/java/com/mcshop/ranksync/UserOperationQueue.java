@@ -0,0 +1,39 @@
+package com.mcshop.ranksync;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+// Runs asynchronous operations one after another per user, without blocking a thread while waiting.
+// Users are hashed onto a fixed number of stripes, each running one operation at a time, so
+// operations on one user keep their order and the stripe count bounds overall concurrency.
+public class UserOperationQueue {
+    private final Stripe[] stripes;
+
+    public UserOperationQueue(int stripeCount) {
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public <T> CompletableFuture<T> submit(UUID uuid, Supplier<CompletableFuture<T>> operation) {
+        Stripe stripe = stripes[Math.floorMod(uuid.hashCode(), stripes.length)];
+        synchronized (stripe) {
+            CompletableFuture<T> result = stripe.tail.thenCompose(ignored -> {
+                try {
+                    return operation.get();
+                } catch (Throwable t) {
+                    return CompletableFuture.failedFuture(t);
+                }
+            });
+            // A failed operation must not stop the ones queued behind it
+            stripe.tail = result.handle((value, throwable) -> null);
+            return result;
+        }
+    }
+
+    private static class Stripe {
+        private CompletableFuture<Object> tail = CompletableFuture.completedFuture(null);
+    }
+}
@@ -0,0 +1,139 @@
+package com.mcshop.ranksync;
+
+import net.luckperms.api.LuckPerms;
+import net.luckperms.api.model.user.User;
+import org.bukkit.Bukkit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Merges node changes for the same user that arrive within a short window, so a bundle that
+// grants, removes and adds several groups costs one load, one save and one sync broadcast.
+public class UserSaveCoalescer {
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+    private final RankSyncPaper plugin;
+    private final LuckPerms luckPerms;
+    private final UserOperationQueue userOperations;
+    private final long windowTicks;
+    private final ConcurrentHashMap<UUID, PendingSave> pending = new ConcurrentHashMap<>();
+    private final LongAdder savesAvoided = new LongAdder();
+    private volatile boolean closed;
+
+    public UserSaveCoalescer(RankSyncPaper plugin, LuckPerms luckPerms, UserOperationQueue userOperations, long windowTicks) {
+        this.plugin = plugin;
+        this.luckPerms = luckPerms;
+        this.userOperations = userOperations;
+        this.windowTicks = windowTicks;
+    }
+
+    // Completes with whether the change was saved, together with every change merged into the same save
+    public CompletableFuture<Boolean> submit(UUID uuid, String username, Consumer<User> change) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("RankSync is disabled"));
+        }
+
+        boolean[] opened = new boolean[1];
+        PendingSave save = pending.compute(uuid, (id, existing) -> {
+            if (existing == null) {
+                existing = new PendingSave(username);
+                opened[0] = true;
+            }
+            existing.changes.add(change);
+            return existing;
+        });
+
+        if (opened[0]) {
+            Bukkit.getScheduler().runTaskLaterAsynchronously(plugin, () -> flush(uuid), windowTicks);
+        }
+        return save.future;
+    }
+
+    // Saves that were skipped because their changes rode along with another one
+    public long getSavesAvoided() {
+        return savesAvoided.sum();
+    }
+
+    // The delayed flushes are cancelled with the plugin, so whatever is still waiting is saved now.
+    // Blocks until those saves finish; the ones that take too long are failed.
+    public void close() {
+        closed = true;
+        List<PendingSave> saves = new ArrayList<>();
+        for (UUID uuid : pending.keySet()) {
+            PendingSave save = flush(uuid);
+            if (save != null) {
+                saves.add(save);
+            }
+        }
+        if (saves.isEmpty()) {
+            return;
+        }
+
+        CompletableFuture<?>[] futures = new CompletableFuture[saves.size()];
+        for (int i = 0; i < saves.size(); i++) {
+            futures[i] = saves.get(i).future;
+        }
+        try {
+            CompletableFuture.allOf(futures).get(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            // Reported through each save's own future
+        } catch (TimeoutException e) {
+            plugin.getLogger().warning("Gave up waiting for LuckPerms saves on shutdown");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (PendingSave save : saves) {
+            save.future.completeExceptionally(new IllegalStateException("RankSync was disabled before the save finished"));
+        }
+    }
+
+    private PendingSave flush(UUID uuid) {
+        PendingSave save = pending.remove(uuid);
+        if (save == null) {
+            return null;
+        }
+        savesAvoided.add(save.changes.size() - 1);
+
+        userOperations.submit(uuid, () -> luckPerms.getUserManager().loadUser(uuid)
+            .thenCompose(user -> {
+                if (user == null) {
+                    plugin.getLogger().severe("Could not load user data for: " + save.username);
+                    return CompletableFuture.completedFuture(false);
+                }
+
+                // In the order they were submitted
+                for (Consumer<User> change : save.changes) {
+                    change.accept(user);
+                }
+                // Save changes, the proxy is only told once they are stored
+                return luckPerms.getUserManager().saveUser(user).thenApply(saved -> true);
+            }))
+            .whenComplete((saved, throwable) -> {
+                if (throwable != null) {
+                    save.future.completeExceptionally(throwable);
+                } else {
+                    save.future.complete(saved);
+                }
+            });
+        return save;
+    }
+
+    private static class PendingSave {
+        private final String username;
+        // Only modified inside pending.compute, read after the entry is removed
+        private final List<Consumer<User>> changes = new ArrayList<>();
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        private PendingSave(String username) {
+            this.username = username;
+        }
+    }
+}
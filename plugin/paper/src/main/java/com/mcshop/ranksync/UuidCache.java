@@ -0,0 +1,79 @@
+package com.mcshop.ranksync;
+
+import net.luckperms.api.LuckPerms;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+// Case-insensitive username -> UUID cache in front of LuckPerms lookups, with LRU eviction and a TTL.
+// Unknown names are cached too, for a shorter time, so repeated grants for a typo stay off storage.
+public class UuidCache {
+    private final LuckPerms luckPerms;
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final LinkedHashMap<String, CachedUuid> entries;
+
+    public UuidCache(LuckPerms luckPerms, int maxEntries, long ttlMillis, long negativeTtlMillis) {
+        this.luckPerms = luckPerms;
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        // Access order, so the eldest entry is the least recently used
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedUuid> eldest) {
+                return size() > UuidCache.this.maxEntries;
+            }
+        };
+    }
+
+    // Completes with null for names LuckPerms does not know
+    public CompletableFuture<UUID> lookup(String username) {
+        String key = username.toLowerCase(Locale.ROOT);
+        synchronized (entries) {
+            CachedUuid cached = entries.get(key);
+            if (cached != null) {
+                if (cached.expiresAt > System.currentTimeMillis()) {
+                    return CompletableFuture.completedFuture(cached.uuid);
+                }
+                entries.remove(key);
+            }
+        }
+
+        return luckPerms.getUserManager().lookupUniqueId(username).thenApply(uuid -> {
+            store(key, uuid);
+            return uuid;
+        });
+    }
+
+    public void put(String username, UUID uuid) {
+        store(username.toLowerCase(Locale.ROOT), uuid);
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private void store(String key, UUID uuid) {
+        long ttl = uuid != null ? ttlMillis : negativeTtlMillis;
+        synchronized (entries) {
+            entries.put(key, new CachedUuid(uuid, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    private static class CachedUuid {
+        private final UUID uuid;
+        private final long expiresAt;
+
+        private CachedUuid(UUID uuid, long expiresAt) {
+            this.uuid = uuid;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.mcshop.ranksync;
+
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.PluginMessageEvent;
+import com.velocitypowered.api.proxy.ServerConnection;
+import com.velocitypowered.api.proxy.messages.MinecraftChannelIdentifier;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+public class AckListener {
+    public static final MinecraftChannelIdentifier ACK_CHANNEL =
+        MinecraftChannelIdentifier.create(RankSyncProtocol.NAMESPACE, RankSyncProtocol.ACK_NAME);
+
+    private final DispatchTracker tracker;
+    private final Logger logger;
+    private final LongAdder acksReceived;
+    private final LongAdder malformedAcks;
+
+    public AckListener(DispatchTracker tracker, Logger logger, RankSyncMetrics metrics) {
+        this.tracker = tracker;
+        this.logger = logger;
+        this.acksReceived = metrics.counter("ranksync_acks_received_total",
+            "Grant acknowledgements received from backends", "");
+        this.malformedAcks = metrics.counter("ranksync_acks_malformed_total",
+            "Acknowledgement messages that could not be decoded", "");
+    }
+
+    @Subscribe
+    public void onPluginMessage(PluginMessageEvent event) {
+        if (!ACK_CHANNEL.equals(event.getIdentifier())) {
+            return;
+        }
+        // Never forwarded to the client
+        event.setResult(PluginMessageEvent.ForwardResult.handled());
+
+        // Only backends acknowledge grants, a client could otherwise forge them
+        if (!(event.getSource() instanceof ServerConnection)) {
+            return;
+        }
+
+        try {
+            for (RankAck ack : RankSyncProtocol.decodeAcks(event.getData())) {
+                acksReceived.increment();
+                tracker.acknowledge(ack);
+            }
+        } catch (IOException e) {
+            malformedAcks.increment();
+            logger.warn("Ignoring malformed ranksync ack: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.mcshop.ranksync;
+
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.PluginMessageEvent;
+
+// Rank operations only ever originate from the proxy. Messages arriving on the command channel are
+// never forwarded: a modded client could otherwise send a forged grant through to its backend.
+public class CommandChannelGuard {
+    @Subscribe
+    public void onPluginMessage(PluginMessageEvent event) {
+        if (RankCommandDispatcher.COMMAND_CHANNEL.equals(event.getIdentifier())) {
+            event.setResult(PluginMessageEvent.ForwardResult.handled());
+        }
+    }
+}
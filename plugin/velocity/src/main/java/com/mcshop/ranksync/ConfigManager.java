@@ -2,25 +2,38 @@ package com.mcshop.ranksync;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 public class ConfigManager {
+    public static final String DEFAULT_WEBHOOK_SECRET = "change_this_to_a_secure_secret";
+
+    private static final String CONFIG_FILE = "config.json";
+    private static final long RELOAD_DEBOUNCE_MILLIS = 250;
+
     private final Path dataDirectory;
     private final Logger logger = LoggerFactory.getLogger(ConfigManager.class);
     private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
-    
-    private String supabaseUrl = "your-project-url.supabase.co";
-    private String supabaseKey = "your-supabase-anon-key";
-    private int webhookPort = 8081;
-    private String webhookSecret = "change_this_to_a_secure_secret";
-    private Map<String, RankConfig> ranks = new HashMap<>();
+    // Readers take the current snapshot without locking; reloads publish a whole new one
+    private final AtomicReference<ConfigSnapshot> snapshot = new AtomicReference<>(new ConfigSnapshot(new Config()));
+    private final List<Consumer<ConfigSnapshot>> reloadListeners = new CopyOnWriteArrayList<>();
+    private volatile WatchService watchService;
 
     public ConfigManager(Path dataDirectory) {
         this.dataDirectory = dataDirectory;
@@ -33,33 +46,30 @@ public class ConfigManager {
                 Files.createDirectories(dataDirectory);
             }
 
-            File configFile = dataDirectory.resolve("config.json").toFile();
+            File configFile = dataDirectory.resolve(CONFIG_FILE).toFile();
             if (!configFile.exists()) {
                 // Create default ranks
-                ranks.put("VIP", new RankConfig("VIP", "&a[VIP]", new String[]{
+                Map<String, RankConfig> ranks = new HashMap<>();
+                ranks.put("VIP", new RankConfig("VIP", "&a[VIP]", List.of(
                     "fly.lobby",
                     "vip.chat",
                     "vip.perks"
-                }));
-                ranks.put("MVP", new RankConfig("MVP", "&b[MVP]", new String[]{
+                )));
+                ranks.put("MVP", new RankConfig("MVP", "&b[MVP]", List.of(
                     "fly.lobby",
                     "fly.survival",
                     "mvp.chat",
                     "mvp.perks"
-                }));
-                ranks.put("ELITE", new RankConfig("ELITE", "&5[ELITE]", new String[]{
+                )));
+                ranks.put("ELITE", new RankConfig("ELITE", "&5[ELITE]", List.of(
                     "fly.*",
                     "elite.chat",
                     "elite.perks",
                     "elite.commands"
-                }));
+                )));
 
                 // Create default config
                 Config config = new Config();
-                config.supabaseUrl = supabaseUrl;
-                config.supabaseKey = supabaseKey;
-                config.webhookPort = webhookPort;
-                config.webhookSecret = webhookSecret;
                 config.ranks = ranks;
 
                 // Save to file
@@ -71,58 +81,234 @@ public class ConfigManager {
         }
     }
 
+    // The first load has no previous settings to fall back to, so a missing or bad file stops startup
     public void loadConfig() {
         try {
-            File configFile = dataDirectory.resolve("config.json").toFile();
-            if (configFile.exists()) {
-                String jsonConfig = Files.readString(configFile.toPath());
-                Config config = gson.fromJson(jsonConfig, Config.class);
-
-                this.supabaseUrl = config.supabaseUrl;
-                this.supabaseKey = config.supabaseKey;
-                this.webhookPort = config.webhookPort;
-                this.webhookSecret = config.webhookSecret;
-                this.ranks = config.ranks;
-            }
+            publish(read());
+        } catch (IOException | JsonParseException | IllegalArgumentException e) {
+            throw new IllegalStateException("Invalid " + CONFIG_FILE + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Parses and validates config.json, then publishes it; a bad file keeps the previous snapshot
+    public boolean reload() {
+        if (!Files.exists(dataDirectory.resolve(CONFIG_FILE))) {
+            return false;
+        }
+
+        ConfigSnapshot next;
+        try {
+            next = read();
+        } catch (IOException | JsonParseException | IllegalArgumentException e) {
+            logger.error("Invalid " + CONFIG_FILE + ", keeping the previous settings: " + e.getMessage());
+            return false;
+        }
+        publish(next);
+        return true;
+    }
+
+    private ConfigSnapshot read() throws IOException {
+        String jsonConfig = Files.readString(dataDirectory.resolve(CONFIG_FILE));
+        Config config = gson.fromJson(jsonConfig, Config.class);
+        if (config == null) {
+            throw new IllegalArgumentException("file is empty");
+        }
+        return new ConfigSnapshot(config);
+    }
+
+    private void publish(ConfigSnapshot next) {
+        ConfigSnapshot previous = snapshot.getAndSet(next);
+        List<String> restartRequired = next.restartRequiredChanges(previous);
+        if (!restartRequired.isEmpty() && watchService != null) {
+            logger.warn("Changed settings take effect after a restart: " + String.join(", ", restartRequired));
+        }
+        for (Consumer<ConfigSnapshot> listener : reloadListeners) {
+            listener.accept(next);
+        }
+    }
+
+    // Reloads config.json whenever it changes on disk
+    public void startWatching() {
+        try {
+            WatchService watcher = dataDirectory.getFileSystem().newWatchService();
+            dataDirectory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchService = watcher;
+
+            Thread thread = new Thread(() -> watch(watcher), "RankSync-ConfigWatch");
+            thread.setDaemon(true);
+            thread.start();
         } catch (IOException e) {
-            logger.error("Failed to load config", e);
+            logger.error("Failed to watch " + CONFIG_FILE + " for changes, reloading is disabled", e);
+        }
+    }
+
+    public void stopWatching() {
+        WatchService watcher = watchService;
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                logger.error("Failed to stop watching " + CONFIG_FILE, e);
+            }
+        }
+    }
+
+    // Called with each newly published snapshot
+    public void addReloadListener(Consumer<ConfigSnapshot> listener) {
+        reloadListeners.add(listener);
+    }
+
+    public ConfigSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    private void watch(WatchService watcher) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            boolean changed = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.context() instanceof Path && CONFIG_FILE.equals(event.context().toString())) {
+                    changed = true;
+                }
+            }
+            key.reset();
+
+            if (changed) {
+                try {
+                    // Editors often write a file in several steps, let them finish
+                    Thread.sleep(RELOAD_DEBOUNCE_MILLIS);
+                    WatchKey extra;
+                    while ((extra = watcher.poll()) != null) {
+                        extra.pollEvents();
+                        extra.reset();
+                    }
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+
+                if (reload()) {
+                    logger.info("Reloaded " + CONFIG_FILE);
+                }
+            }
         }
     }
 
     public String getSupabaseUrl() {
-        return supabaseUrl;
+        return snapshot.get().getSupabaseUrl();
     }
 
     public String getSupabaseKey() {
-        return supabaseKey;
+        return snapshot.get().getSupabaseKey();
     }
 
     public int getWebhookPort() {
-        return webhookPort;
+        return snapshot.get().getWebhookPort();
     }
 
     public String getWebhookSecret() {
-        return webhookSecret;
+        return snapshot.get().getWebhookSecret();
+    }
+
+    public int getWebhookToleranceSeconds() {
+        return snapshot.get().getWebhookToleranceSeconds();
+    }
+
+    public String getWebhookIngress() {
+        return snapshot.get().getWebhookIngress();
+    }
+
+    public int getWebhookThreads() {
+        return snapshot.get().getWebhookThreads();
+    }
+
+    public int getWebhookBacklog() {
+        return snapshot.get().getWebhookBacklog();
+    }
+
+    public int getStatusFlushIntervalMillis() {
+        return snapshot.get().getStatusFlushIntervalMillis();
+    }
+
+    public int getStatusFlushBatchSize() {
+        return snapshot.get().getStatusFlushBatchSize();
+    }
+
+    public int getRankInsertLingerMillis() {
+        return snapshot.get().getRankInsertLingerMillis();
+    }
+
+    public int getRankInsertBatchSize() {
+        return snapshot.get().getRankInsertBatchSize();
+    }
+
+    public String getStorageBackend() {
+        return snapshot.get().getStorageBackend();
+    }
+
+    public int getStorageRequestTimeoutMillis() {
+        return snapshot.get().getStorageRequestTimeoutMillis();
+    }
+
+    public int getStorageThreads() {
+        return snapshot.get().getStorageThreads();
+    }
+
+    public int getStorageQueueCapacity() {
+        return snapshot.get().getStorageQueueCapacity();
+    }
+
+    public String getStorageRejectionPolicy() {
+        return snapshot.get().getStorageRejectionPolicy();
+    }
+
+    public int getReconcileIntervalSeconds() {
+        return snapshot.get().getReconcileIntervalSeconds();
+    }
+
+    public String getDispatchStrategy() {
+        return snapshot.get().getDispatchStrategy();
     }
 
     public Map<String, RankConfig> getRanks() {
-        return ranks;
+        return snapshot.get().getRanks();
     }
 
-    private static class Config {
-        String supabaseUrl;
-        String supabaseKey;
-        int webhookPort;
-        String webhookSecret;
-        Map<String, RankConfig> ranks;
+    // Gson target; fields missing from older files keep these defaults
+    static class Config {
+        String supabaseUrl = "your-project-url.supabase.co";
+        String supabaseKey = "your-supabase-anon-key";
+        int webhookPort = 8081;
+        String webhookSecret = DEFAULT_WEBHOOK_SECRET;
+        int webhookToleranceSeconds = 300;
+        String webhookIngress = "virtual";
+        int webhookThreads = 16;
+        int webhookBacklog = 128;
+        int statusFlushIntervalMillis = 250;
+        int statusFlushBatchSize = 500;
+        int rankInsertLingerMillis = 5;
+        int rankInsertBatchSize = 200;
+        String storageBackend = "supabase-java";
+        int storageRequestTimeoutMillis = 10000;
+        int storageThreads = 8;
+        int storageQueueCapacity = 1000;
+        String storageRejectionPolicy = "fail";
+        int reconcileIntervalSeconds = 300;
+        String dispatchStrategy = "targeted";
+        Map<String, RankConfig> ranks = new HashMap<>();
     }
 
     public static class RankConfig {
         private final String name;
         private final String prefix;
-        private final String[] permissions;
+        private final List<String> permissions;
 
-        public RankConfig(String name, String prefix, String[] permissions) {
+        public RankConfig(String name, String prefix, List<String> permissions) {
             this.name = name;
             this.prefix = prefix;
             this.permissions = permissions;
@@ -136,7 +322,7 @@ public class ConfigManager {
             return prefix;
         }
 
-        public String[] getPermissions() {
+        public List<String> getPermissions() {
             return permissions;
         }
     }
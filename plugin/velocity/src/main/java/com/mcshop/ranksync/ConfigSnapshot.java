@@ -0,0 +1,217 @@
+package com.mcshop.ranksync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+// Immutable, validated view of one version of config.json. ConfigManager swaps in a new one on
+// reload, so a reader holding a snapshot always sees settings from the same file.
+public final class ConfigSnapshot {
+    private static final Set<String> INGRESS_MODES = Set.of("virtual", "pool");
+    private static final Set<String> STORAGE_BACKENDS = Set.of("supabase-java", "http");
+    private static final Set<String> REJECTION_POLICIES = Set.of("fail", "caller-runs");
+    private static final Set<String> DISPATCH_STRATEGIES = Set.of("targeted", "broadcast");
+
+    private final String supabaseUrl;
+    private final String supabaseKey;
+    private final int webhookPort;
+    private final String webhookSecret;
+    private final int webhookToleranceSeconds;
+    private final String webhookIngress;
+    private final int webhookThreads;
+    private final int webhookBacklog;
+    private final int statusFlushIntervalMillis;
+    private final int statusFlushBatchSize;
+    private final int rankInsertLingerMillis;
+    private final int rankInsertBatchSize;
+    private final String storageBackend;
+    private final int storageRequestTimeoutMillis;
+    private final int storageThreads;
+    private final int storageQueueCapacity;
+    private final String storageRejectionPolicy;
+    private final int reconcileIntervalSeconds;
+    private final String dispatchStrategy;
+    private final Map<String, ConfigManager.RankConfig> ranks;
+
+    // Throws IllegalArgumentException naming the first invalid setting
+    ConfigSnapshot(ConfigManager.Config config) {
+        this.supabaseUrl = require("supabaseUrl", config.supabaseUrl);
+        this.supabaseKey = require("supabaseKey", config.supabaseKey);
+        this.webhookPort = range("webhookPort", config.webhookPort, 1, 65535);
+        this.webhookSecret = require("webhookSecret", config.webhookSecret);
+        this.webhookToleranceSeconds = positive("webhookToleranceSeconds", config.webhookToleranceSeconds);
+        this.webhookIngress = oneOf("webhookIngress", config.webhookIngress, INGRESS_MODES);
+        this.webhookThreads = positive("webhookThreads", config.webhookThreads);
+        this.webhookBacklog = positive("webhookBacklog", config.webhookBacklog);
+        this.statusFlushIntervalMillis = positive("statusFlushIntervalMillis", config.statusFlushIntervalMillis);
+        this.statusFlushBatchSize = positive("statusFlushBatchSize", config.statusFlushBatchSize);
+        this.rankInsertLingerMillis = positive("rankInsertLingerMillis", config.rankInsertLingerMillis);
+        this.rankInsertBatchSize = positive("rankInsertBatchSize", config.rankInsertBatchSize);
+        this.storageBackend = oneOf("storageBackend", config.storageBackend, STORAGE_BACKENDS);
+        this.storageRequestTimeoutMillis = positive("storageRequestTimeoutMillis", config.storageRequestTimeoutMillis);
+        this.storageThreads = positive("storageThreads", config.storageThreads);
+        this.storageQueueCapacity = positive("storageQueueCapacity", config.storageQueueCapacity);
+        this.storageRejectionPolicy = oneOf("storageRejectionPolicy", config.storageRejectionPolicy, REJECTION_POLICIES);
+        this.reconcileIntervalSeconds = positive("reconcileIntervalSeconds", config.reconcileIntervalSeconds);
+        this.dispatchStrategy = oneOf("dispatchStrategy", config.dispatchStrategy, DISPATCH_STRATEGIES);
+
+        Map<String, ConfigManager.RankConfig> ranks = new HashMap<>();
+        if (config.ranks != null) {
+            for (Map.Entry<String, ConfigManager.RankConfig> entry : config.ranks.entrySet()) {
+                ConfigManager.RankConfig rank = entry.getValue();
+                if (rank == null || rank.getName() == null || rank.getName().isBlank()) {
+                    throw new IllegalArgumentException("ranks." + entry.getKey() + " has no name");
+                }
+                // Copied, so the published snapshot shares nothing mutable with the parsed config
+                List<String> permissions = rank.getPermissions() != null ? rank.getPermissions() : List.of();
+                if (permissions.stream().anyMatch(Objects::isNull)) {
+                    throw new IllegalArgumentException("ranks." + entry.getKey() + ".permissions contains null");
+                }
+                ranks.put(entry.getKey(), new ConfigManager.RankConfig(rank.getName(), rank.getPrefix(),
+                    List.copyOf(permissions)));
+            }
+        }
+        this.ranks = Collections.unmodifiableMap(ranks);
+    }
+
+    // Settings that are only read while starting up
+    public List<String> restartRequiredChanges(ConfigSnapshot previous) {
+        List<String> changed = new ArrayList<>();
+        if (!supabaseUrl.equals(previous.supabaseUrl) || !supabaseKey.equals(previous.supabaseKey)) {
+            changed.add("supabase");
+        }
+        if (webhookPort != previous.webhookPort || !webhookIngress.equals(previous.webhookIngress)
+                || webhookThreads != previous.webhookThreads || webhookBacklog != previous.webhookBacklog) {
+            changed.add("webhook listener");
+        }
+        if (statusFlushIntervalMillis != previous.statusFlushIntervalMillis
+                || statusFlushBatchSize != previous.statusFlushBatchSize
+                || rankInsertLingerMillis != previous.rankInsertLingerMillis
+                || rankInsertBatchSize != previous.rankInsertBatchSize
+                || !storageBackend.equals(previous.storageBackend)
+                || storageRequestTimeoutMillis != previous.storageRequestTimeoutMillis
+                || storageThreads != previous.storageThreads
+                || storageQueueCapacity != previous.storageQueueCapacity
+                || !storageRejectionPolicy.equals(previous.storageRejectionPolicy)) {
+            changed.add("storage");
+        }
+        if (reconcileIntervalSeconds != previous.reconcileIntervalSeconds) {
+            changed.add("reconcileIntervalSeconds");
+        }
+        return changed;
+    }
+
+    public String getSupabaseUrl() {
+        return supabaseUrl;
+    }
+
+    public String getSupabaseKey() {
+        return supabaseKey;
+    }
+
+    public int getWebhookPort() {
+        return webhookPort;
+    }
+
+    public String getWebhookSecret() {
+        return webhookSecret;
+    }
+
+    public int getWebhookToleranceSeconds() {
+        return webhookToleranceSeconds;
+    }
+
+    public String getWebhookIngress() {
+        return webhookIngress;
+    }
+
+    public int getWebhookThreads() {
+        return webhookThreads;
+    }
+
+    public int getWebhookBacklog() {
+        return webhookBacklog;
+    }
+
+    public int getStatusFlushIntervalMillis() {
+        return statusFlushIntervalMillis;
+    }
+
+    public int getStatusFlushBatchSize() {
+        return statusFlushBatchSize;
+    }
+
+    public int getRankInsertLingerMillis() {
+        return rankInsertLingerMillis;
+    }
+
+    public int getRankInsertBatchSize() {
+        return rankInsertBatchSize;
+    }
+
+    public String getStorageBackend() {
+        return storageBackend;
+    }
+
+    public int getStorageRequestTimeoutMillis() {
+        return storageRequestTimeoutMillis;
+    }
+
+    public int getStorageThreads() {
+        return storageThreads;
+    }
+
+    public int getStorageQueueCapacity() {
+        return storageQueueCapacity;
+    }
+
+    public String getStorageRejectionPolicy() {
+        return storageRejectionPolicy;
+    }
+
+    public int getReconcileIntervalSeconds() {
+        return reconcileIntervalSeconds;
+    }
+
+    public String getDispatchStrategy() {
+        return dispatchStrategy;
+    }
+
+    public Map<String, ConfigManager.RankConfig> getRanks() {
+        return ranks;
+    }
+
+    private static String require(String name, String value) {
+        if (value == null || value.isBlank()) {
+            throw new IllegalArgumentException(name + " must be set");
+        }
+        return value;
+    }
+
+    private static int positive(String name, int value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(name + " must be greater than 0, got " + value);
+        }
+        return value;
+    }
+
+    private static int range(String name, int value, int min, int max) {
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(name + " must be between " + min + " and " + max + ", got " + value);
+        }
+        return value;
+    }
+
+    private static String oneOf(String name, String value, Set<String> allowed) {
+        String normalized = Objects.requireNonNullElse(value, "").toLowerCase(Locale.ROOT);
+        if (!allowed.contains(normalized)) {
+            throw new IllegalArgumentException(name + " must be one of " + allowed + ", got " + value);
+        }
+        return normalized;
+    }
+}
@@ -0,0 +1,25 @@
+package com.mcshop.ranksync;
+
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.player.ServerPostConnectEvent;
+
+public class ConnectionListener {
+    private final RankManager rankManager;
+    private final RankCommandDispatcher dispatcher;
+
+    public ConnectionListener(RankManager rankManager, RankCommandDispatcher dispatcher) {
+        this.rankManager = rankManager;
+        this.dispatcher = dispatcher;
+    }
+
+    @Subscribe
+    public void onServerPostConnect(ServerPostConnectEvent event) {
+        // Deliver grants bought while offline once the player has a backend to receive them
+        if (event.getPreviousServer() == null) {
+            rankManager.deliverPendingGrants(event.getPlayer());
+        }
+
+        // Send what was held back while the player was switching servers
+        dispatcher.retry(event.getPlayer());
+    }
+}
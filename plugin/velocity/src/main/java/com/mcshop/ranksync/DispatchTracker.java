@@ -0,0 +1,136 @@
+package com.mcshop.ranksync;
+
+import com.velocitypowered.api.proxy.Player;
+import org.slf4j.Logger;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Correlates dispatched grants with the acknowledgements the backends send back on ranksync:ack,
+// resending grants that are not acknowledged in time, and times each stage of a purchase.
+public class DispatchTracker {
+    // Outlasts the dispatcher's hold window, so a grant held for a player between servers is sent
+    // before it is resent, and never goes out twice
+    private static final long ACK_TIMEOUT_MILLIS = RankCommandDispatcher.MAX_HOLD_MILLIS + 5000;
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final RankCommandDispatcher dispatcher;
+    private final Logger logger;
+    private final ConcurrentHashMap<String, InFlight> inFlight = new ConcurrentHashMap<>();
+    private final LatencyHistogram receivedToDispatched = new LatencyHistogram("received_to_dispatched");
+    private final LatencyHistogram dispatchedToApplied = new LatencyHistogram("dispatched_to_applied");
+    private final LatencyHistogram receivedToApplied = new LatencyHistogram("received_to_applied");
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RankSync-AckTimeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public DispatchTracker(RankCommandDispatcher dispatcher, Logger logger) {
+        this.dispatcher = dispatcher;
+        this.logger = logger;
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Completes with the backend's acknowledgement, or a failed one after the last attempt times out.
+    // receivedAt is when the webhook accepted the purchase, 0 if unknown.
+    public CompletableFuture<RankAck> track(Player player, RankOperation operation, long receivedAt) {
+        InFlight dispatch = new InFlight(player, operation, receivedAt);
+        InFlight existing = inFlight.putIfAbsent(operation.getPurchaseId(), dispatch);
+        if (existing != null) {
+            return existing.future;
+        }
+
+        send(dispatch);
+        if (receivedAt > 0) {
+            receivedToDispatched.record(dispatch.sentAt - receivedAt);
+        }
+        return dispatch.future;
+    }
+
+    public void acknowledge(RankAck ack) {
+        InFlight dispatch = inFlight.remove(ack.getPurchaseId());
+        if (dispatch == null) {
+            // Late, or a second backend answering a broadcast
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        dispatchedToApplied.record(now - dispatch.sentAt);
+        if (ack.isSuccess() && dispatch.receivedAt > 0) {
+            receivedToApplied.record(now - dispatch.receivedAt);
+        }
+        dispatch.future.complete(ack);
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public LatencyHistogram getReceivedToDispatched() {
+        return receivedToDispatched;
+    }
+
+    public LatencyHistogram getDispatchedToApplied() {
+        return dispatchedToApplied;
+    }
+
+    public LatencyHistogram getReceivedToApplied() {
+        return receivedToApplied;
+    }
+
+    public void close() {
+        // Unacknowledged grants stay unacknowledged in the journal and are replayed on the next start
+        sweeper.shutdownNow();
+        if (receivedToApplied.getCount() > 0) {
+            logger.info("Grant latency " + receivedToDispatched.summary() + ", " + dispatchedToApplied.summary()
+                + ", " + receivedToApplied.summary());
+        }
+    }
+
+    private void send(InFlight dispatch) {
+        dispatch.attempts++;
+        dispatch.sentAt = System.currentTimeMillis();
+        dispatcher.submit(dispatch.player, dispatch.operation);
+    }
+
+    private void sweep() {
+        long deadline = System.currentTimeMillis() - ACK_TIMEOUT_MILLIS;
+        for (Map.Entry<String, InFlight> entry : inFlight.entrySet()) {
+            InFlight dispatch = entry.getValue();
+            if (dispatch.sentAt > deadline) {
+                continue;
+            }
+
+            if (dispatch.attempts < MAX_ATTEMPTS) {
+                logger.warn("No acknowledgement for purchase " + entry.getKey() + ", resending (attempt "
+                    + (dispatch.attempts + 1) + ")");
+                send(dispatch);
+            } else if (inFlight.remove(entry.getKey(), dispatch)) {
+                dispatch.future.complete(new RankAck(entry.getKey(), false,
+                    "No acknowledgement from backend after " + MAX_ATTEMPTS + " attempts"));
+            }
+        }
+    }
+
+    private static class InFlight {
+        private final Player player;
+        private final RankOperation operation;
+        private final long receivedAt;
+        private final CompletableFuture<RankAck> future = new CompletableFuture<>();
+        // Set before publication, so the sweeper never sees an unsent dispatch as timed out
+        private volatile long sentAt = System.currentTimeMillis();
+        private volatile int attempts;
+
+        private InFlight(Player player, RankOperation operation, long receivedAt) {
+            this.player = player;
+            this.operation = operation;
+            this.receivedAt = receivedAt;
+        }
+    }
+}
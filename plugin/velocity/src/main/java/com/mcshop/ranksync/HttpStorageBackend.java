@@ -0,0 +1,254 @@
+package com.mcshop.ranksync;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.slf4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+// Storage through PostgREST directly, on one shared java.net.http client. Connections are kept alive
+// and reused, and multiplexed over HTTP/2 where the server supports it, so calls do not pay for a new
+// connection or TLS handshake. Calls are sent asynchronously with a per-request timeout and gzip
+// responses; at most storageQueueCapacity are in flight, more fail straight away.
+public class HttpStorageBackend implements StorageBackend {
+    private static final String PENDING_COLUMNS = "id,username,rank,purchase_id,created_at";
+    private static final long REJECTION_WARN_INTERVAL_MILLIS = 10_000;
+    private static final int MAX_ERROR_BODY_CHARS = 500;
+
+    private final Logger logger;
+    private final String restUrl;
+    private final String supabaseKey;
+    private final Duration requestTimeout;
+    private final int maxInFlight;
+    private final Gson gson = new Gson();
+    private final ExecutorService executor;
+    private final HttpClient client;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicLong lastRejectionWarning = new AtomicLong();
+
+    public HttpStorageBackend(Logger logger, ConfigManager config) {
+        this.logger = logger;
+        this.restUrl = restUrl(config.getSupabaseUrl());
+        this.supabaseKey = config.getSupabaseKey();
+        this.requestTimeout = Duration.ofMillis(config.getStorageRequestTimeoutMillis());
+        this.maxInFlight = config.getStorageQueueCapacity();
+
+        // Completes responses and runs what depends on them, like the storage threads do for supabase-java
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(config.getStorageThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "RankSync-Http-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(requestTimeout)
+            .executor(executor)
+            .build();
+    }
+
+    @Override
+    public CompletableFuture<Void> insertRankUpdates(List<Map<String, Object>> rankUpdates) {
+        HttpRequest request = request("rank_updates")
+            .header("Prefer", "return=minimal")
+            .POST(json(rankUpdates))
+            .build();
+        return send(request, body -> null);
+    }
+
+    @Override
+    public CompletableFuture<Void> updatePurchaseStatuses(Collection<String> purchaseIds, Map<String, Object> update) {
+        HttpRequest request = request("purchases?purchase_id=" + encode(inFilter(purchaseIds)))
+            .header("Prefer", "return=minimal")
+            .method("PATCH", json(update))
+            .build();
+        return send(request, body -> null);
+    }
+
+    @Override
+    public CompletableFuture<List<PendingRank>> selectPendingRanks(Collection<String> usernames, PendingCursor after,
+                                                                   int limit) {
+        StringBuilder query = new StringBuilder("rank_updates?select=").append(PENDING_COLUMNS)
+            .append("&status=eq.pending");
+        if (usernames != null) {
+            query.append("&username=").append(encode(inFilter(usernames)));
+        }
+        query.append("&or=").append(encode("(" + after.toFilter() + ")"))
+            .append("&order=created_at.asc,id.asc")
+            .append("&limit=").append(limit);
+
+        HttpRequest request = request(query.toString()).GET().build();
+        return send(request, HttpStorageBackend::readPendingRanks);
+    }
+
+    @Override
+    public CompletableFuture<Void> updateRankUpdate(String purchaseId, Map<String, Object> update) {
+        HttpRequest request = request("rank_updates?purchase_id=" + encode("eq." + purchaseId))
+            .header("Prefer", "return=minimal")
+            .method("PATCH", json(update))
+            .build();
+        return send(request, body -> null);
+    }
+
+    @Override
+    public boolean subscribeToRankUpdates(Consumer<String> listener) {
+        // Realtime is a websocket channel of the supabase-java client, not part of PostgREST
+        return false;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        // Requests waiting for a stream are queued inside the HTTP client
+        return 0;
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private HttpRequest.Builder request(String pathAndQuery) {
+        return HttpRequest.newBuilder(URI.create(restUrl + pathAndQuery))
+            .timeout(requestTimeout)
+            .header("apikey", supabaseKey)
+            .header("Authorization", "Bearer " + supabaseKey)
+            .header("Content-Type", "application/json")
+            .header("Accept", "application/json")
+            .header("Accept-Encoding", "gzip");
+    }
+
+    private HttpRequest.BodyPublisher json(Object body) {
+        return HttpRequest.BodyPublishers.ofByteArray(gson.toJson(body).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private <T> CompletableFuture<T> send(HttpRequest request, BodyReader<T> reader) {
+        if (inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            rejected.increment();
+            warnRejected();
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Too many storage calls in flight"));
+        }
+
+        CompletableFuture<HttpResponse<byte[]>> response;
+        try {
+            response = client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+        } catch (RuntimeException e) {
+            inFlight.decrementAndGet();
+            return CompletableFuture.failedFuture(e);
+        }
+        return response
+            .whenComplete((result, throwable) -> inFlight.decrementAndGet())
+            .thenApply(result -> {
+                try (InputStream body = decode(result)) {
+                    if (result.statusCode() / 100 != 2) {
+                        throw new IllegalStateException("HTTP " + result.statusCode() + ": " + errorMessage(body));
+                    }
+                    return reader.read(body);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+    }
+
+    private static InputStream decode(HttpResponse<byte[]> response) throws IOException {
+        InputStream body = new ByteArrayInputStream(response.body());
+        boolean gzip = response.headers().firstValue("Content-Encoding")
+            .map(encoding -> encoding.equalsIgnoreCase("gzip"))
+            .orElse(false);
+        return gzip ? new GZIPInputStream(body) : body;
+    }
+
+    private static String errorMessage(InputStream body) throws IOException {
+        String text = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+        return text.length() > MAX_ERROR_BODY_CHARS ? text.substring(0, MAX_ERROR_BODY_CHARS) + "..." : text;
+    }
+
+    private static List<PendingRank> readPendingRanks(InputStream body) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        List<PendingRank> page = new ArrayList<>();
+        reader.beginArray();
+        while (reader.peek() != JsonToken.END_ARRAY) {
+            page.add(PendingRank.read(reader));
+        }
+        reader.endArray();
+        return page;
+    }
+
+    // Accepts the project URL with or without a scheme
+    private static String restUrl(String supabaseUrl) {
+        String url = supabaseUrl.contains("://") ? supabaseUrl : "https://" + supabaseUrl;
+        while (url.endsWith("/")) {
+            url = url.substring(0, url.length() - 1);
+        }
+        return url + "/rest/v1/";
+    }
+
+    // PostgREST in.(...) operand with every value quoted, so commas and parentheses stay literal
+    private static String inFilter(Collection<String> values) {
+        StringJoiner joiner = new StringJoiner(",", "in.(", ")");
+        for (String value : values) {
+            joiner.add("\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+        }
+        return joiner.toString();
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private void warnRejected() {
+        long now = System.currentTimeMillis();
+        long last = lastRejectionWarning.get();
+        if (now - last >= REJECTION_WARN_INTERVAL_MILLIS && lastRejectionWarning.compareAndSet(last, now)) {
+            logger.warn("Too many PostgREST calls in flight (" + getInFlight() + " in flight, "
+                + getRejectedCount() + " rejected so far)");
+        }
+    }
+
+    private interface BodyReader<T> {
+        T read(InputStream body) throws IOException;
+    }
+}
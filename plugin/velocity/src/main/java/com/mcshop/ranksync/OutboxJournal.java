@@ -0,0 +1,411 @@
+package com.mcshop.ranksync;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Append-only, memory-mapped write-ahead journal of accepted purchases.
+// Records are [length][crc][sequence][payload] in fixed-size segment files; a zero length marks the end.
+// Every acknowledgement is written to a memory-mapped ack log as it happens, so a restart never replays
+// an acknowledged record. Compaction checkpoints the acknowledged set, empties the ack log and deletes
+// fully acknowledged segments.
+public class OutboxJournal {
+    private static final int SEGMENT_BYTES = 4 * 1024 * 1024;
+    private static final int HEADER_BYTES = Integer.BYTES * 2 + Long.BYTES;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    // Sequences, terminated by a zero; sequences start at 1
+    private static final String ACK_LOG_FILE = "acks.log";
+    private static final int ACK_LOG_BYTES = 1024 * 1024;
+    private static final String DEAD_LETTER_FILE = "dead-letter.log";
+
+    private final Path directory;
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<Entry> recovered = new ArrayList<>();
+    private Segment current;
+    private long nextSequence;
+
+    // Acknowledgements arrive out of order; ackedThrough is the highest contiguous one
+    private final Object ackLock = new Object();
+    private final TreeSet<Long> ackedAhead = new TreeSet<>();
+    private long ackedThrough;
+    private boolean ackedSinceCheckpoint;
+    private FileChannel ackChannel;
+    private MappedByteBuffer ackLog;
+
+    private OutboxJournal(Path directory) {
+        this.directory = directory;
+    }
+
+    public static OutboxJournal open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        OutboxJournal journal = new OutboxJournal(directory);
+        journal.recover();
+        return journal;
+    }
+
+    // Entries that were appended but not acknowledged before the last shutdown
+    public List<Entry> getRecovered() {
+        return recovered;
+    }
+
+    public synchronized Entry append(RankUpdate update) throws IOException {
+        Entry entry = write(update);
+        current.buffer.force();
+        return entry;
+    }
+
+    // Group commit: one fsync for the whole list
+    public synchronized List<Entry> appendAll(List<RankUpdate> updates) throws IOException {
+        List<Entry> entries = new ArrayList<>(updates.size());
+        for (RankUpdate update : updates) {
+            entries.add(write(update));
+        }
+        current.buffer.force();
+        return entries;
+    }
+
+    public void ack(long sequence) {
+        while (true) {
+            synchronized (ackLock) {
+                if (sequence <= ackedThrough || ackedAhead.contains(sequence)) {
+                    return;
+                }
+                if (ackLog.remaining() >= Long.BYTES * 2) {
+                    // Terminator first, so a crash between the two writes only loses this acknowledgement
+                    ackLog.putLong(ackLog.position() + Long.BYTES, 0);
+                    ackLog.putLong(sequence);
+                    addAck(sequence);
+                    return;
+                }
+            }
+
+            // The ack log is full, a checkpoint empties it
+            try {
+                compact();
+            } catch (IOException e) {
+                // Kept in memory only; the record is replayed if the proxy stops before the next checkpoint
+                synchronized (ackLock) {
+                    addAck(sequence);
+                }
+                return;
+            }
+        }
+    }
+
+    // Moves a record that cannot be delivered into the dead-letter file, one JSON object per line in the
+    // format the batch webhook accepts, and acknowledges it so it no longer holds back compaction
+    public synchronized void deadLetter(Entry entry) throws IOException {
+        RankUpdate update = entry.getUpdate();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8))) {
+            writer.beginObject()
+                .name("username").value(update.getUsername())
+                .name("rank").value(update.getRankName())
+                .name("purchaseId").value(update.getPurchaseId())
+                .name("receivedAt").value(update.getReceivedAt())
+                .name("sequence").value(entry.getSequence())
+                .name("attempts").value(entry.attempts)
+                .endObject();
+        }
+        bytes.write('\n');
+
+        try (FileChannel channel = FileChannel.open(directory.resolve(DEAD_LETTER_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(bytes.toByteArray()));
+            channel.force(true);
+        }
+        ack(entry.getSequence());
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    // Persists the acknowledged set, empties the ack log and deletes segments that are fully acknowledged
+    public synchronized void compact() throws IOException {
+        long acked;
+        synchronized (ackLock) {
+            if (!ackedSinceCheckpoint) {
+                return;
+            }
+            // Under the ack lock, so no acknowledgement lands in the log between the checkpoint and the reset
+            acked = ackedThrough;
+            writeCheckpoint(acked, ackedAhead);
+            ackLog.putLong(0, 0);
+            ackLog.position(0);
+            ackedSinceCheckpoint = false;
+        }
+
+        while (segments.size() > 1 && segments.get(0).lastSequence <= acked) {
+            Segment segment = segments.remove(0);
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        compact();
+        for (Segment segment : segments) {
+            segment.buffer.force();
+            segment.channel.close();
+        }
+        segments.clear();
+        ackLog.force();
+        ackChannel.close();
+    }
+
+    // Caller holds ackLock
+    private void addAck(long sequence) {
+        ackedAhead.add(sequence);
+        while (!ackedAhead.isEmpty() && ackedAhead.first() == ackedThrough + 1) {
+            ackedThrough = ackedAhead.pollFirst();
+        }
+        ackedSinceCheckpoint = true;
+    }
+
+    private Entry write(RankUpdate update) throws IOException {
+        byte[] payload = encode(update);
+        int recordBytes = HEADER_BYTES + payload.length;
+        if (recordBytes + Integer.BYTES > SEGMENT_BYTES) {
+            throw new IOException("Journal record too large: " + recordBytes + " bytes");
+        }
+        // Leave room for the zero length that terminates the segment
+        if (current.buffer.remaining() < recordBytes + Integer.BYTES) {
+            rotate();
+        }
+
+        long sequence = nextSequence++;
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        MappedByteBuffer buffer = current.buffer;
+        int start = buffer.position();
+        buffer.position(start + Integer.BYTES);
+        buffer.putInt((int) crc.getValue());
+        buffer.putLong(sequence);
+        buffer.put(payload);
+        // Length last, so a torn write never looks like a complete record
+        buffer.putInt(start, payload.length);
+
+        current.lastSequence = sequence;
+        return new Entry(sequence, update);
+    }
+
+    private void rotate() throws IOException {
+        current.buffer.force();
+        current = openSegment(nextSequence);
+        segments.add(current);
+    }
+
+    private void recover() throws IOException {
+        readCheckpoint();
+        readAckLog();
+        nextSequence = (ackedAhead.isEmpty() ? ackedThrough : ackedAhead.last()) + 1;
+
+        List<Path> paths;
+        try (Stream<Path> files = Files.list(directory)) {
+            paths = files
+                .filter(path -> {
+                    String name = path.getFileName().toString();
+                    return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                })
+                .sorted()
+                .toList();
+        }
+
+        for (Path path : paths) {
+            Segment segment = mapSegment(path, firstSequenceOf(path));
+            scan(segment);
+            segments.add(segment);
+        }
+
+        if (segments.isEmpty()) {
+            segments.add(openSegment(nextSequence));
+        }
+        current = segments.get(segments.size() - 1);
+    }
+
+    private void scan(Segment segment) throws IOException {
+        MappedByteBuffer buffer = segment.buffer;
+        while (buffer.remaining() >= HEADER_BYTES) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining() - HEADER_BYTES + Integer.BYTES) {
+                buffer.position(start);
+                break;
+            }
+
+            int crcValue = buffer.getInt();
+            long sequence = buffer.getLong();
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != crcValue) {
+                // Torn tail from a crash, the next append overwrites it
+                buffer.position(start);
+                buffer.putInt(start, 0);
+                break;
+            }
+
+            segment.lastSequence = sequence;
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            if (sequence > ackedThrough && !ackedAhead.contains(sequence)) {
+                recovered.add(new Entry(sequence, decode(payload)));
+            }
+        }
+    }
+
+    private Segment openSegment(long firstSequence) throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        return mapSegment(path, firstSequence);
+    }
+
+    private static Segment mapSegment(Path path, long firstSequence) throws IOException {
+        FileChannel channel = FileChannel.open(path,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+        return new Segment(path, channel, buffer, firstSequence - 1);
+    }
+
+    private static long firstSequenceOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    // [ackedThrough][count][sequences acknowledged beyond it]; older checkpoints hold only ackedThrough
+    private void readCheckpoint() throws IOException {
+        Path checkpointFile = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(checkpointFile)) {
+            return;
+        }
+        ByteBuffer checkpoint = ByteBuffer.wrap(Files.readAllBytes(checkpointFile));
+        if (checkpoint.remaining() < Long.BYTES) {
+            return;
+        }
+        ackedThrough = checkpoint.getLong();
+        if (checkpoint.remaining() >= Integer.BYTES) {
+            int count = checkpoint.getInt();
+            for (int i = 0; i < count && checkpoint.remaining() >= Long.BYTES; i++) {
+                ackedAhead.add(checkpoint.getLong());
+            }
+        }
+    }
+
+    // Acknowledgements made since the last checkpoint
+    private void readAckLog() throws IOException {
+        ackChannel = FileChannel.open(directory.resolve(ACK_LOG_FILE),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ackLog = ackChannel.map(FileChannel.MapMode.READ_WRITE, 0, ACK_LOG_BYTES);
+        while (ackLog.remaining() >= Long.BYTES) {
+            long sequence = ackLog.getLong();
+            if (sequence == 0) {
+                ackLog.position(ackLog.position() - Long.BYTES);
+                break;
+            }
+            if (sequence > ackedThrough) {
+                addAck(sequence);
+            }
+        }
+    }
+
+    private void writeCheckpoint(long through, TreeSet<Long> ahead) throws IOException {
+        ByteBuffer checkpoint = ByteBuffer.allocate(Long.BYTES + Integer.BYTES + Long.BYTES * ahead.size());
+        checkpoint.putLong(through).putInt(ahead.size());
+        for (long sequence : ahead) {
+            checkpoint.putLong(sequence);
+        }
+        checkpoint.flip();
+
+        Path temp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (checkpoint.hasRemaining()) {
+                channel.write(checkpoint);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve(CHECKPOINT_FILE),
+            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static byte[] encode(RankUpdate update) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(update.getUsername());
+            out.writeUTF(update.getRankName());
+            out.writeUTF(update.getPurchaseId());
+            out.writeLong(update.getReceivedAt());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static RankUpdate decode(byte[] payload) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            String username = in.readUTF();
+            String rankName = in.readUTF();
+            String purchaseId = in.readUTF();
+            // Records written before receivedAt was journaled end here
+            long receivedAt = in.available() >= Long.BYTES ? in.readLong() : 0;
+            return new RankUpdate(username, rankName, purchaseId, receivedAt);
+        }
+    }
+
+    public static class Entry {
+        private final long sequence;
+        private final RankUpdate update;
+        private int attempts;
+
+        private Entry(long sequence, RankUpdate update) {
+            this.sequence = sequence;
+            this.update = update;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public RankUpdate getUpdate() {
+            return update;
+        }
+
+        public int nextAttempt() {
+            return ++attempts;
+        }
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private long lastSequence;
+
+        private Segment(Path path, FileChannel channel, MappedByteBuffer buffer, long lastSequence) {
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.lastSequence = lastSequence;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.mcshop.ranksync;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Delivers journaled purchases to the rank manager in batches and acknowledges them in the journal
+// once they are applied or queued. Failed deliveries are retried with exponential backoff, so a
+// Supabase outage only delays grants; a purchase that still fails after MAX_ATTEMPTS is moved to the
+// journal's dead-letter file.
+public class OutboxReplayer {
+    private static final int BATCH_SIZE = 100;
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+    // About an hour and a half, most of it at the maximum backoff
+    private static final int MAX_ATTEMPTS = 100;
+    private static final long COMPACT_INTERVAL_SECONDS = 1;
+
+    private final OutboxJournal journal;
+    private final RankManager rankManager;
+    private final Logger logger;
+    private final LinkedBlockingQueue<OutboxJournal.Entry> queue = new LinkedBlockingQueue<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RankSync-Outbox");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public OutboxReplayer(OutboxJournal journal, RankManager rankManager, Logger logger) {
+        this.journal = journal;
+        this.rankManager = rankManager;
+        this.logger = logger;
+    }
+
+    public void start() {
+        List<OutboxJournal.Entry> recovered = journal.getRecovered();
+        if (!recovered.isEmpty()) {
+            logger.info("Replaying " + recovered.size() + " undelivered purchase(s) from the journal");
+        }
+        executor.scheduleWithFixedDelay(this::compact, COMPACT_INTERVAL_SECONDS, COMPACT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        submit(recovered);
+    }
+
+    public void submit(List<OutboxJournal.Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        queue.addAll(entries);
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the entries stay in the journal for the next start
+        }
+    }
+
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compact();
+    }
+
+    private void drain() {
+        List<OutboxJournal.Entry> batch = new ArrayList<>(BATCH_SIZE);
+        while (queue.drainTo(batch, BATCH_SIZE) > 0) {
+            deliver(batch);
+            batch = new ArrayList<>(BATCH_SIZE);
+        }
+    }
+
+    private void deliver(List<OutboxJournal.Entry> batch) {
+        List<RankUpdate> updates = new ArrayList<>(batch.size());
+        for (OutboxJournal.Entry entry : batch) {
+            updates.add(entry.getUpdate());
+        }
+
+        List<CompletableFuture<Boolean>> results = rankManager.processRankUpdates(updates);
+        for (int i = 0; i < batch.size(); i++) {
+            OutboxJournal.Entry entry = batch.get(i);
+            results.get(i).whenComplete((delivered, throwable) -> {
+                if (throwable == null && delivered) {
+                    journal.ack(entry.getSequence());
+                } else {
+                    retry(entry);
+                }
+            });
+        }
+    }
+
+    private void retry(OutboxJournal.Entry entry) {
+        int attempt = entry.nextAttempt();
+        if (attempt >= MAX_ATTEMPTS && deadLetter(entry, attempt)) {
+            return;
+        }
+
+        long delay = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+        if (attempt == 1 || delay == MAX_BACKOFF_MILLIS) {
+            logger.warn("Delivery of purchase " + entry.getUpdate().getPurchaseId() + " failed, retrying in "
+                + delay + "ms (attempt " + attempt + ")");
+        }
+
+        try {
+            executor.schedule(() -> submit(List.of(entry)), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the entry stays in the journal for the next start
+        }
+    }
+
+    private boolean deadLetter(OutboxJournal.Entry entry, int attempts) {
+        RankUpdate update = entry.getUpdate();
+        try {
+            journal.deadLetter(entry);
+        } catch (IOException e) {
+            // Kept in the journal and retried, a purchase is never dropped
+            logger.error("Error dead-lettering purchase " + update.getPurchaseId(), e);
+            return false;
+        }
+        logger.error("Giving up on purchase " + update.getPurchaseId() + " (" + update.getUsername() + " -> "
+            + update.getRankName() + ") after " + attempts + " attempts, moved to the journal's dead-letter file");
+        return true;
+    }
+
+    private void compact() {
+        try {
+            journal.compact();
+        } catch (IOException e) {
+            logger.error("Error compacting the purchase journal", e);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.mcshop.ranksync;
+
+// Position in the pending rank_updates stream, ordered by (created_at, id)
+public class PendingCursor implements Comparable<PendingCursor> {
+    public static final PendingCursor START = new PendingCursor(-1, -1);
+
+    private final long createdAt;
+    private final long id;
+
+    public PendingCursor(long createdAt, long id) {
+        this.createdAt = createdAt;
+        this.id = id;
+    }
+
+    public static PendingCursor of(PendingRank rank) {
+        return new PendingCursor(rank.getCreatedAt(), rank.getId());
+    }
+
+    // PostgREST "or" filter selecting the rows after this cursor
+    public String toFilter() {
+        return "created_at.gt." + createdAt + ",and(created_at.eq." + createdAt + ",id.gt." + id + ")";
+    }
+
+    public PendingCursor max(PendingCursor other) {
+        return compareTo(other) >= 0 ? this : other;
+    }
+
+    @Override
+    public int compareTo(PendingCursor other) {
+        int byCreatedAt = Long.compare(createdAt, other.createdAt);
+        return byCreatedAt != 0 ? byCreatedAt : Long.compare(id, other.id);
+    }
+}
@@ -0,0 +1,67 @@
+package com.mcshop.ranksync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Grants waiting for offline players, keyed by lower-cased username so a login can pick them up directly
+public class PendingGrantIndex {
+    private final ConcurrentHashMap<String, List<RankUpdate>> grants = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int maxGrants;
+
+    public PendingGrantIndex(int maxGrants) {
+        this.maxGrants = maxGrants;
+    }
+
+    // Returns false when the index is full; the reconciliation poll still finds the grant
+    public boolean add(RankUpdate update) {
+        if (size.incrementAndGet() > maxGrants) {
+            size.decrementAndGet();
+            return false;
+        }
+
+        grants.compute(normalize(update.getUsername()), (username, existing) -> {
+            List<RankUpdate> updated = existing != null ? new ArrayList<>(existing) : new ArrayList<>(1);
+            updated.add(update);
+            return updated;
+        });
+        return true;
+    }
+
+    public List<RankUpdate> remove(String username) {
+        List<RankUpdate> removed = grants.remove(normalize(username));
+        if (removed == null) {
+            return List.of();
+        }
+        size.addAndGet(-removed.size());
+        return removed;
+    }
+
+    // Drops one purchase, once it has been applied some other way than a login
+    public void remove(String username, String purchaseId) {
+        int[] removed = new int[1];
+        grants.computeIfPresent(normalize(username), (key, existing) -> {
+            List<RankUpdate> updated = new ArrayList<>(existing.size());
+            for (RankUpdate update : existing) {
+                if (update.getPurchaseId().equals(purchaseId)) {
+                    removed[0]++;
+                } else {
+                    updated.add(update);
+                }
+            }
+            return updated.isEmpty() ? null : updated;
+        });
+        size.addAndGet(-removed[0]);
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    private static String normalize(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+}
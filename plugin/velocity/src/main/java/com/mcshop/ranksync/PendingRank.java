@@ -0,0 +1,58 @@
+package com.mcshop.ranksync;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+
+// A pending rank_updates row, with the (created_at, id) key used for keyset pagination
+public class PendingRank extends RankUpdate {
+    private final long id;
+    private final long createdAt;
+
+    public PendingRank(long id, long createdAt, String username, String rankName, String purchaseId) {
+        super(username, rankName, purchaseId);
+        this.id = id;
+        this.createdAt = createdAt;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    // Streams one rank_updates row, skipping columns that were not selected for the keyset
+    public static PendingRank read(JsonReader reader) throws IOException {
+        long id = 0;
+        long createdAt = 0;
+        String username = null;
+        String rankName = null;
+        String purchaseId = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "id" -> id = reader.nextLong();
+                case "created_at" -> createdAt = reader.nextLong();
+                case "username" -> username = reader.nextString();
+                case "rank" -> rankName = reader.nextString();
+                case "purchase_id" -> purchaseId = reader.nextString();
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (username == null || rankName == null || purchaseId == null) {
+            throw new IllegalStateException("Pending rank row is missing username, rank or purchase_id");
+        }
+        return new PendingRank(id, createdAt, username, rankName, purchaseId);
+    }
+}
@@ -0,0 +1,87 @@
+package com.mcshop.ranksync;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Remembers how far each purchase has been taken, so the webhook, realtime and poller paths
+// only dispatch it once. Stages only move forward; an expired entry counts as unknown.
+public class PurchaseIdempotencyIndex {
+    // Claimed by the webhook before journaling, so concurrent redeliveries journal it only once
+    public static final int ACCEPTED = 0;
+    public static final int QUEUED = 1;
+    public static final int APPLIED = 2;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    public PurchaseIdempotencyIndex(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    // Returns true if the caller moved the purchase to this stage and should perform it
+    public boolean advance(String purchaseId, int stage) {
+        long now = System.currentTimeMillis();
+        Entry next = new Entry(stage, now + ttlMillis);
+
+        while (true) {
+            Entry current = entries.putIfAbsent(purchaseId, next);
+            if (current == null) {
+                if (entries.size() > maxEntries) {
+                    evict(now);
+                }
+                return true;
+            }
+            if (current.stage >= stage && current.expiresAt > now) {
+                return false;
+            }
+            if (entries.replace(purchaseId, current, next)) {
+                return true;
+            }
+        }
+    }
+
+    // Lets a purchase be retried after the stage that claimed it failed
+    public void release(String purchaseId, int stage) {
+        Entry current = entries.get(purchaseId);
+        if (current != null && current.stage == stage) {
+            entries.remove(purchaseId, current);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void evict(long now) {
+        // Only one caller sweeps at a time, everyone else carries on
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            entries.values().removeIf(entry -> entry.expiresAt <= now);
+            if (entries.size() <= maxEntries) {
+                return;
+            }
+
+            // Still full of live entries, drop the oldest tenth
+            long[] expiries = entries.values().stream().mapToLong(entry -> entry.expiresAt).sorted().toArray();
+            long cutoff = expiries[Math.min(expiries.length - 1, expiries.length - maxEntries * 9 / 10)];
+            entries.values().removeIf(entry -> entry.expiresAt <= cutoff);
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private static class Entry {
+        private final int stage;
+        private final long expiresAt;
+
+        private Entry(int stage, long expiresAt) {
+            this.stage = stage;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
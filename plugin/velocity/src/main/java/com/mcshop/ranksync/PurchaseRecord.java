@@ -0,0 +1,146 @@
+package com.mcshop.ranksync;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+// Purchases as sent by the storefront or rank_updates rows, read field by field from the JSON
+// stream without building a tree. One record is reused for every purchase a request carries; a
+// RankUpdate is only created for a purchase that is complete and about to be accepted.
+public final class PurchaseRecord {
+    private final Utf8SliceReader slice = new Utf8SliceReader();
+    private String username = "";
+    private String rank = "";
+    private String purchaseId = "";
+
+    // Reads a document holding exactly one purchase object from the UTF-8 bytes in [start, end),
+    // decoded as they are parsed
+    public void readDocument(byte[] bytes, int start, int end) throws IOException {
+        readDocument(new JsonReader(slice.reset(bytes, start, end)));
+    }
+
+    public void readDocument(JsonReader reader) throws IOException {
+        read(reader);
+        if (reader.peek() != JsonToken.END_DOCUMENT) {
+            throw new MalformedJsonException("Unexpected data after the purchase");
+        }
+    }
+
+    // Reads one JSON object; unknown fields are skipped, missing or null ones are left empty.
+    // Throws IOException for malformed JSON and IllegalStateException for a value of the wrong type.
+    public void read(JsonReader reader) throws IOException {
+        username = "";
+        rank = "";
+        purchaseId = "";
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "username" -> username = reader.nextString();
+                case "rank" -> rank = reader.nextString();
+                // Storefront payloads use camel case, rank_updates rows snake case
+                case "purchaseId", "purchase_id" -> purchaseId = reader.nextString();
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    public boolean isComplete() {
+        return !username.isEmpty() && !rank.isEmpty() && !purchaseId.isEmpty();
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getRank() {
+        return rank;
+    }
+
+    public String getPurchaseId() {
+        return purchaseId;
+    }
+
+    public RankUpdate toUpdate(long receivedAt) {
+        return new RankUpdate(username, rank, purchaseId, receivedAt);
+    }
+
+    // Decodes a range of a byte array straight into the JSON reader's buffer. Malformed input is
+    // replaced with U+FFFD, as new String(bytes, UTF_8) would.
+    private static class Utf8SliceReader extends Reader {
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        // A supplementary character does not fit a one-char read, its low surrogate is held here
+        private final char[] pair = new char[2];
+        private ByteBuffer input;
+        private boolean pending;
+        private boolean done;
+
+        private Utf8SliceReader reset(byte[] bytes, int start, int end) {
+            if (input == null || input.array() != bytes) {
+                input = ByteBuffer.wrap(bytes);
+            }
+            input.limit(end).position(start);
+            decoder.reset();
+            pending = false;
+            done = false;
+            return this;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (pending) {
+                pending = false;
+                buffer[offset] = pair[1];
+                return 1;
+            }
+            if (length == 1) {
+                int count = decode(pair, 0, 2);
+                if (count > 0) {
+                    buffer[offset] = pair[0];
+                    pending = count == 2;
+                    return 1;
+                }
+                return count;
+            }
+            return decode(buffer, offset, length);
+        }
+
+        private int decode(char[] buffer, int offset, int length) {
+            CharBuffer output = CharBuffer.wrap(buffer, offset, length);
+            if (!done) {
+                CoderResult result = decoder.decode(input, output, true);
+                if (result.isUnderflow()) {
+                    decoder.flush(output);
+                    done = true;
+                }
+            }
+            int count = output.position() - offset;
+            return count == 0 && done ? -1 : count;
+        }
+
+        @Override
+        public void close() {
+            // Reused for every purchase of the request
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.mcshop.ranksync;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Write-behind buffer for purchase statuses. Only the latest status per purchase is kept, and purchases
+// sharing a status and message are written with one update per flush; terminal statuses are flushed
+// straight away. Rows whose write fails are put back and retried by the next flush.
+public class PurchaseStatusBuffer {
+    private static final Set<String> TERMINAL_STATUSES = Set.of("applied", "error");
+    // Keeps the purchase_id=in.(...) filter within URL limits
+    private static final int IDS_PER_WRITE = 100;
+
+    private final SupabaseManager supabase;
+    private final int batchSize;
+    private final ConcurrentHashMap<String, PendingStatus> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    // A single thread runs every flush, so writes for the same purchase land in order
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RankSync-StatusFlush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PurchaseStatusBuffer(SupabaseManager supabase, long flushIntervalMillis, int batchSize) {
+        this.supabase = supabase;
+        this.batchSize = batchSize;
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Completes once the status, or a later one for the same purchase, has been written
+    public CompletableFuture<Void> submit(String purchaseId, String status, String message) {
+        PendingStatus entry = pending.compute(purchaseId, (id, previous) -> new PendingStatus(
+            status,
+            Objects.requireNonNullElse(message, ""),
+            previous != null ? previous.future : new CompletableFuture<>()
+        ));
+
+        if (TERMINAL_STATUSES.contains(status) || pending.size() >= batchSize) {
+            requestFlush();
+        }
+        return entry.future;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+
+        // Still failing at shutdown
+        for (String purchaseId : pending.keySet()) {
+            PendingStatus entry = pending.remove(purchaseId);
+            if (entry != null) {
+                entry.future.completeExceptionally(new IllegalStateException("Purchase status was not written"));
+            }
+        }
+    }
+
+    private void requestFlush() {
+        if (flushQueued.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flush);
+            } catch (RuntimeException e) {
+                // Shutting down, close() flushes whatever is left
+                flushQueued.set(false);
+            }
+        }
+    }
+
+    private void flush() {
+        flushQueued.set(false);
+
+        while (!pending.isEmpty()) {
+            // Grouped by status and message, each group is one update filtered on its purchase ids
+            Map<Map.Entry<String, String>, Map<String, PendingStatus>> groups = new LinkedHashMap<>();
+            int taken = 0;
+            for (String purchaseId : pending.keySet()) {
+                PendingStatus entry = pending.remove(purchaseId);
+                if (entry == null) {
+                    continue;
+                }
+                groups.computeIfAbsent(Map.entry(entry.status, entry.message), key -> new LinkedHashMap<>())
+                    .put(purchaseId, entry);
+                if (++taken >= batchSize) {
+                    break;
+                }
+            }
+
+            List<Map<String, PendingStatus>> writes = new ArrayList<>();
+            for (Map<String, PendingStatus> group : groups.values()) {
+                Map<String, PendingStatus> write = new LinkedHashMap<>();
+                for (Map.Entry<String, PendingStatus> entry : group.entrySet()) {
+                    write.put(entry.getKey(), entry.getValue());
+                    if (write.size() >= IDS_PER_WRITE) {
+                        writes.add(write);
+                        write = new LinkedHashMap<>();
+                    }
+                }
+                if (!write.isEmpty()) {
+                    writes.add(write);
+                }
+            }
+
+            for (int i = 0; i < writes.size(); i++) {
+                Map<String, PendingStatus> write = writes.get(i);
+                PendingStatus first = write.values().iterator().next();
+                // Waited on so the next flush cannot overtake this one
+                try {
+                    supabase.writePurchaseStatuses(first.status, first.message, new ArrayList<>(write.keySet())).join();
+                } catch (CompletionException e) {
+                    // Keep this and the unwritten rows for the next flush instead of spinning on a failing database
+                    for (int j = i; j < writes.size(); j++) {
+                        requeue(writes.get(j));
+                    }
+                    return;
+                }
+                for (PendingStatus entry : write.values()) {
+                    entry.future.complete(null);
+                }
+            }
+        }
+    }
+
+    private void requeue(Map<String, PendingStatus> write) {
+        for (Map.Entry<String, PendingStatus> failed : write.entrySet()) {
+            PendingStatus entry = failed.getValue();
+            pending.compute(failed.getKey(), (id, newer) -> {
+                if (newer == null) {
+                    return entry;
+                }
+                // A later status arrived meanwhile and supersedes this one
+                newer.future.whenComplete((result, throwable) -> {
+                    if (throwable == null) {
+                        entry.future.complete(null);
+                    } else {
+                        entry.future.completeExceptionally(throwable);
+                    }
+                });
+                return newer;
+            });
+        }
+    }
+
+    private static class PendingStatus {
+        private final String status;
+        private final String message;
+        private final CompletableFuture<Void> future;
+
+        private PendingStatus(String status, String message, CompletableFuture<Void> future) {
+            this.status = status;
+            this.message = message;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.mcshop.ranksync;
+
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ProxyServer;
+import com.velocitypowered.api.proxy.ServerConnection;
+import com.velocitypowered.api.proxy.messages.MinecraftChannelIdentifier;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Collects rank operations for a few milliseconds and sends them to the backend servers
+// as binary frames, so a burst of grants costs one plugin message per server.
+//
+// "targeted" sends each operation only to the backend the player is on, over that player's
+// connection. Players between servers are held until they connect somewhere, and broadcast if
+// that takes too long.
+// "broadcast" sends everything to every backend.
+public class RankCommandDispatcher {
+    public static final MinecraftChannelIdentifier COMMAND_CHANNEL =
+        MinecraftChannelIdentifier.create(RankSyncProtocol.NAMESPACE, RankSyncProtocol.COMMAND_NAME);
+
+    private static final long LINGER_MILLIS = 5;
+    private static final long RETRY_SWEEP_MILLIS = 1000;
+    private static final long RETRY_TIMEOUT_MILLIS = 10_000;
+    // Longest an operation can wait here before it is sent somewhere
+    static final long MAX_HOLD_MILLIS = RETRY_TIMEOUT_MILLIS + RETRY_SWEEP_MILLIS;
+    private static final int MAX_RETRY_OPERATIONS = 1000;
+
+    private final ProxyServer server;
+    private final Logger logger;
+    private volatile boolean targeted;
+    private final ConcurrentLinkedQueue<PendingDispatch> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Operations for players without a backend, only touched on the flusher thread
+    private final Map<UUID, List<PendingDispatch>> retries = new HashMap<>();
+    // Written on the flusher thread, read by metrics
+    private volatile int retryCount;
+    private final LongAdder targetedOperations;
+    private final LongAdder broadcastOperations;
+    private final LongAdder messagesSent;
+    private final LongAdder sendFailures;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RankSync-Dispatch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public RankCommandDispatcher(ProxyServer server, Logger logger, String strategy, RankSyncMetrics metrics) {
+        this.server = server;
+        this.logger = logger;
+        String operationsHelp = "Rank operations sent to backends, by routing";
+        this.targetedOperations = metrics.counter("ranksync_dispatch_operations_total", operationsHelp, "mode=\"targeted\"");
+        this.broadcastOperations = metrics.counter("ranksync_dispatch_operations_total", operationsHelp, "mode=\"broadcast\"");
+        this.messagesSent = metrics.counter("ranksync_plugin_messages_sent_total",
+            "Plugin message frames sent to backends", "");
+        this.sendFailures = metrics.counter("ranksync_plugin_message_failures_total",
+            "Sends to a backend that failed or had no player to carry them", "");
+        setStrategy(strategy);
+        flusher.scheduleWithFixedDelay(this::sweepRetries, RETRY_SWEEP_MILLIS, RETRY_SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Applies to the next flush; operations already held for retry are still routed or broadcast
+    public void setStrategy(String strategy) {
+        this.targeted = !"broadcast".equalsIgnoreCase(strategy);
+    }
+
+    public void submit(Player player, RankOperation operation) {
+        queue.add(new PendingDispatch(player, operation, System.currentTimeMillis()));
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                flusher.schedule(this::flush, LINGER_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, close() flushes whatever is left
+            }
+        }
+    }
+
+    // Called once the player is connected to a backend again
+    public void retry(Player player) {
+        try {
+            flusher.execute(() -> {
+                List<PendingDispatch> pending = retries.remove(player.getUniqueId());
+                if (pending != null) {
+                    retryCount -= pending.size();
+                    route(pending);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down, close() broadcasts whatever is left
+        }
+    }
+
+    public int getHeldCount() {
+        return retryCount;
+    }
+
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+
+        // Nobody is left to wait for, let every backend have them
+        List<PendingDispatch> held = new ArrayList<>();
+        retries.values().forEach(held::addAll);
+        retries.clear();
+        broadcast(held);
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+
+        List<PendingDispatch> pending = new ArrayList<>();
+        PendingDispatch dispatch;
+        while ((dispatch = queue.poll()) != null) {
+            pending.add(dispatch);
+        }
+        if (!pending.isEmpty()) {
+            route(pending);
+        }
+    }
+
+    private void route(List<PendingDispatch> pending) {
+        if (!targeted) {
+            broadcast(pending);
+            return;
+        }
+
+        Map<RegisteredServer, Target> byServer = new HashMap<>();
+        List<PendingDispatch> overflow = new ArrayList<>();
+        for (PendingDispatch dispatch : pending) {
+            Optional<ServerConnection> connection = dispatch.player.getCurrentServer();
+            if (connection.isPresent()) {
+                Target target = byServer.computeIfAbsent(connection.get().getServer(), key -> new Target());
+                target.dispatches.add(dispatch);
+                target.carriers.add(connection.get());
+            } else {
+                hold(dispatch, overflow);
+            }
+        }
+
+        for (Target target : byServer.values()) {
+            // The players left that backend before these went out
+            for (PendingDispatch dispatch : sendTargeted(target)) {
+                hold(dispatch, overflow);
+            }
+        }
+
+        broadcast(overflow);
+    }
+
+    private void hold(PendingDispatch dispatch, List<PendingDispatch> overflow) {
+        if (retryCount >= MAX_RETRY_OPERATIONS) {
+            overflow.add(dispatch);
+            return;
+        }
+        retries.computeIfAbsent(dispatch.player.getUniqueId(), key -> new ArrayList<>()).add(dispatch);
+        retryCount++;
+    }
+
+    // Re-routes held operations, in case a connect was missed, and broadcasts the ones held too long
+    private void sweepRetries() {
+        if (retries.isEmpty()) {
+            return;
+        }
+
+        long expiry = System.currentTimeMillis() - RETRY_TIMEOUT_MILLIS;
+        List<PendingDispatch> pending = new ArrayList<>();
+        List<PendingDispatch> expired = new ArrayList<>();
+        for (List<PendingDispatch> held : retries.values()) {
+            for (PendingDispatch dispatch : held) {
+                (dispatch.submittedAt < expiry ? expired : pending).add(dispatch);
+            }
+        }
+        retries.clear();
+        retryCount = 0;
+
+        if (!expired.isEmpty()) {
+            logger.warn("Broadcasting " + expired.size() + " rank operation(s) for players who never reached a backend");
+            broadcast(expired);
+        }
+        route(pending);
+    }
+
+    private void broadcast(List<PendingDispatch> pending) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<byte[]> frames = encode(pending);
+        if (frames == null) {
+            // Nothing went out; the tracker times these out and the grant is retried
+            return;
+        }
+        for (RegisteredServer backendServer : server.getAllServers()) {
+            send(backendServer, frames);
+        }
+        broadcastOperations.add(pending.size());
+    }
+
+    // Returns null when the operations could not be encoded
+    private List<byte[]> encode(List<PendingDispatch> pending) {
+        List<RankOperation> operations = new ArrayList<>(pending.size());
+        for (PendingDispatch dispatch : pending) {
+            operations.add(dispatch.operation);
+        }
+
+        try {
+            return RankSyncProtocol.encode(operations);
+        } catch (IOException e) {
+            logger.error("Error encoding " + operations.size() + " rank operation(s)", e);
+            return null;
+        }
+    }
+
+    // Sends each frame over the connection of one of the players it is for, moving on to the next
+    // player when one has left; returns the operations in frames that no connection could carry
+    private List<PendingDispatch> sendTargeted(Target target) {
+        List<byte[]> frames = encode(target.dispatches);
+        if (frames == null) {
+            // Held like any unsent operation, so the retry path and then the tracker deal with them
+            return target.dispatches;
+        }
+        Iterator<ServerConnection> carriers = target.carriers.iterator();
+        ServerConnection carrier = carriers.next();
+        int sent = 0;
+        for (byte[] frame : frames) {
+            while (!send(carrier, frame)) {
+                if (!carriers.hasNext()) {
+                    targetedOperations.add(sent);
+                    return target.dispatches.subList(sent, target.dispatches.size());
+                }
+                carrier = carriers.next();
+            }
+            sent += RankSyncProtocol.entryCount(frame);
+        }
+        targetedOperations.add(sent);
+        return List.of();
+    }
+
+    private boolean send(ServerConnection connection, byte[] frame) {
+        try {
+            if (!connection.sendPluginMessage(COMMAND_CHANNEL, frame)) {
+                sendFailures.increment();
+                return false;
+            }
+            messagesSent.increment();
+            return true;
+        } catch (Exception e) {
+            logger.error("Error sending command to server: " + connection.getServerInfo().getName(), e);
+            sendFailures.increment();
+            return false;
+        }
+    }
+
+    // Broadcast frames ride on any player connected to that backend; with none there is nobody to receive them
+    private void send(RegisteredServer backendServer, List<byte[]> frames) {
+        try {
+            for (byte[] frame : frames) {
+                if (!backendServer.sendPluginMessage(COMMAND_CHANNEL, frame)) {
+                    sendFailures.increment();
+                    return;
+                }
+                messagesSent.increment();
+            }
+        } catch (Exception e) {
+            logger.error("Error sending command to server: " + backendServer.getServerInfo().getName(), e);
+            sendFailures.increment();
+        }
+    }
+
+    // Operations for one backend and the connections that can carry them
+    private static class Target {
+        private final List<PendingDispatch> dispatches = new ArrayList<>();
+        private final Set<ServerConnection> carriers = new LinkedHashSet<>();
+    }
+
+    private static class PendingDispatch {
+        private final Player player;
+        private final RankOperation operation;
+        private final long submittedAt;
+
+        private PendingDispatch(Player player, RankOperation operation, long submittedAt) {
+            this.player = player;
+            this.operation = operation;
+            this.submittedAt = submittedAt;
+        }
+    }
+}
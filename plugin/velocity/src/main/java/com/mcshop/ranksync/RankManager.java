@@ -2,122 +2,256 @@ package com.mcshop.ranksync;
 
 import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.ProxyServer;
-import com.velocitypowered.api.proxy.server.RegisteredServer;
-import org.json.JSONObject;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.NamedTextColor;
 import org.slf4j.Logger;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 public class RankManager {
+    private static final int IDEMPOTENCY_MAX_ENTRIES = 100_000;
+    private static final long IDEMPOTENCY_TTL_MILLIS = TimeUnit.HOURS.toMillis(6);
+    private static final int PENDING_PAGE_SIZE = 200;
+    private static final int USERNAME_CHUNK_SIZE = 100;
+    private static final int POLLS_PER_RECONCILE = 10;
+    private static final int MAX_PENDING_GRANTS = 100_000;
+
     private final ProxyServer server;
     private final Logger logger;
     private final SupabaseManager supabase;
+    private final DispatchTracker tracker;
+    private final LongAdder grantsApplied;
+    private final LongAdder grantsFailed;
+    private final LongAdder grantsQueued;
+    private final LongAdder queueFailures;
+    private final PurchaseIdempotencyIndex processedPurchases =
+        new PurchaseIdempotencyIndex(IDEMPOTENCY_MAX_ENTRIES, IDEMPOTENCY_TTL_MILLIS);
+    private final PendingGrantIndex pendingGrants = new PendingGrantIndex(MAX_PENDING_GRANTS);
+    private final AtomicBoolean polling = new AtomicBoolean();
+    // Poll state, only written by the poll holding the polling flag
+    private volatile PendingCursor pollCursor = PendingCursor.START;
+    private volatile Set<String> polledPlayers = Set.of();
+    private int pollsSinceReconcile;
 
-    public RankManager(ProxyServer server, Logger logger, SupabaseManager supabase) {
+    public RankManager(ProxyServer server, Logger logger, SupabaseManager supabase, DispatchTracker tracker,
+                       RankSyncMetrics metrics) {
         this.server = server;
         this.logger = logger;
         this.supabase = supabase;
+        this.tracker = tracker;
+        String grantsHelp = "Grants sent to online players, by backend acknowledgement";
+        this.grantsApplied = metrics.counter("ranksync_grants_total", grantsHelp, "result=\"applied\"");
+        this.grantsFailed = metrics.counter("ranksync_grants_total", grantsHelp, "result=\"failed\"");
+        this.grantsQueued = metrics.counter("ranksync_grants_queued_total", "Grants stored for offline players", "");
+        this.queueFailures = metrics.counter("ranksync_grants_queue_failures_total",
+            "Grants for offline players that could not be stored", "");
     }
 
     public void syncPendingRanks() {
-        supabase.getPendingRanks()
-            .thenAccept(pendingRanks -> {
-                pendingRanks.forEach((key, value) -> {
-                    JSONObject rankData = new JSONObject((String) value);
-                    String username = rankData.getString("username");
-                    String rankName = rankData.getString("rank");
-                    String purchaseId = rankData.getString("purchase_id");
-
-                    processRankUpdate(username, rankName, purchaseId);
-                });
-            })
+        // Initial load of every pending row: online players get their ranks, the rest are indexed for login
+        supabase.streamPendingRanks(null, PendingCursor.START, PENDING_PAGE_SIZE, this::processPendingPage)
+            .thenAccept(cursor -> logger.info("Loaded " + pendingGrants.size() + " pending rank grant(s)"))
             .exceptionally(throwable -> {
                 logger.error("Error syncing pending ranks", throwable);
                 return null;
             });
     }
 
-    public void processRankUpdate(String username, String rankName, String purchaseId) {
+    public void deliverPendingGrants(Player player) {
+        for (RankUpdate grant : pendingGrants.remove(player.getUsername())) {
+            processStoredRankUpdate(grant.getUsername(), grant.getRankName(), grant.getPurchaseId());
+        }
+    }
+
+    public int getPendingGrantCount() {
+        return pendingGrants.size();
+    }
+
+    // Atomically claims a purchase for the webhook; false if it is already accepted, queued or applied
+    public boolean claimPurchase(String purchaseId) {
+        return processedPurchases.advance(purchaseId, PurchaseIdempotencyIndex.ACCEPTED);
+    }
+
+    // The claimed purchase could not be journaled, a redelivery may claim it again
+    public void releasePurchase(String purchaseId) {
+        processedPurchases.release(purchaseId, PurchaseIdempotencyIndex.ACCEPTED);
+    }
+
+    // Completes with true once a backend has applied the grant, or it is stored for the offline player
+    public CompletableFuture<Boolean> processRankUpdate(RankUpdate update) {
+        String username = update.getUsername();
+        String rankName = update.getRankName();
+        String purchaseId = update.getPurchaseId();
+
         // Find the player if they're online
         Optional<Player> playerOpt = server.getPlayer(username);
         
         if (playerOpt.isPresent()) {
             // Player is online, apply rank immediately
-            applyRank(playerOpt.get(), rankName, purchaseId);
-        } else {
-            // Store the pending rank update
-            supabase.queueRankUpdate(username, rankName, purchaseId)
-                .thenAccept(success -> {
-                    if (success) {
-                        logger.info("Queued rank update for offline player: " + username);
-                    } else {
-                        logger.error("Failed to queue rank update for: " + username);
-                    }
-                });
+            if (processedPurchases.advance(purchaseId, PurchaseIdempotencyIndex.APPLIED)) {
+                pendingGrants.remove(username, purchaseId);
+                return applyRank(playerOpt.get(), rankName, purchaseId, update.getReceivedAt());
+            }
+            return CompletableFuture.completedFuture(true);
+        }
+
+        if (!processedPurchases.advance(purchaseId, PurchaseIdempotencyIndex.QUEUED)) {
+            // Already queued or applied
+            return CompletableFuture.completedFuture(true);
         }
+
+        // Store the pending rank update
+        return supabase.queueRankUpdate(username, rankName, purchaseId)
+            .thenApply(success -> {
+                if (success) {
+                    grantsQueued.increment();
+                    logger.info("Queued rank update for offline player: " + username);
+                    pendingGrants.add(new RankUpdate(username, rankName, purchaseId));
+                    supabase.updatePurchaseStatus(purchaseId, "queued", "Rank update queued");
+                } else {
+                    queueFailures.increment();
+                    logger.error("Failed to queue rank update for: " + username);
+                    processedPurchases.release(purchaseId, PurchaseIdempotencyIndex.QUEUED);
+                }
+                return success;
+            });
     }
 
-    private void applyRank(Player player, String rankName, String purchaseId) {
-        // Send rank update command to all backend servers
-        String command = String.format("ranksync apply %s %s %s", 
-            player.getUsername(), 
-            rankName,
-            purchaseId
-        );
+    // For updates that already have a rank_updates row (realtime inserts and pending rows), never queue them again
+    public void processStoredRankUpdate(String username, String rankName, String purchaseId) {
+        Optional<Player> playerOpt = server.getPlayer(username);
 
-        for (RegisteredServer backendServer : server.getAllServers()) {
-            sendCommandToServer(backendServer, command);
+        if (playerOpt.isEmpty()) {
+            if (processedPurchases.advance(purchaseId, PurchaseIdempotencyIndex.QUEUED)) {
+                pendingGrants.add(new RankUpdate(username, rankName, purchaseId));
+            }
+            return;
         }
 
-        // Notify the player
-        player.sendMessage(net.kyori.adventure.text.Component.text(
-            "§aYour new rank §6" + rankName + " §ahas been applied!"
-        ));
-
-        // Update purchase status
-        supabase.updatePurchaseStatus(purchaseId, "applied", "Rank has been applied successfully")
-            .exceptionally(throwable -> {
-                logger.error("Error updating purchase status", throwable);
-                return null;
-            });
+        if (processedPurchases.advance(purchaseId, PurchaseIdempotencyIndex.APPLIED)) {
+            // Applied by the poll or realtime before the login delivered it
+            pendingGrants.remove(username, purchaseId);
+            // Left pending when the backend fails, the next reconcile picks it up again
+            applyRank(playerOpt.get(), rankName, purchaseId, 0)
+                .thenCompose(applied -> applied
+                    ? supabase.markRankAsApplied(purchaseId)
+                    : CompletableFuture.completedFuture(false))
+                .exceptionally(throwable -> {
+                    logger.error("Error marking rank as applied", throwable);
+                    return false;
+                });
+        }
     }
 
-    private void sendCommandToServer(RegisteredServer server, String command) {
-        try {
-            server.sendPluginMessage(
-                net.kyori.adventure.key.Key.key("ranksync", "command"),
-                command.getBytes()
-            );
-        } catch (Exception e) {
-            logger.error("Error sending command to server: " + server.getServerInfo().getName(), e);
+    public List<CompletableFuture<Boolean>> processRankUpdates(List<RankUpdate> updates) {
+        List<CompletableFuture<Boolean>> results = new ArrayList<>(updates.size());
+        for (RankUpdate update : updates) {
+            results.add(processRankUpdate(update));
         }
+        return results;
     }
 
-    public void checkPendingRanks() {
-        supabase.getPendingRanks()
-            .thenAccept(pendingRanks -> {
-                pendingRanks.forEach((key, value) -> {
-                    JSONObject rankData = new JSONObject((String) value);
-                    String username = rankData.getString("username");
-                    String rankName = rankData.getString("rank");
-                    String purchaseId = rankData.getString("purchase_id");
-
-                    Optional<Player> playerOpt = server.getPlayer(username);
-                    if (playerOpt.isPresent()) {
-                        applyRank(playerOpt.get(), rankName, purchaseId);
-                        supabase.markRankAsApplied(purchaseId)
-                            .exceptionally(throwable -> {
-                                logger.error("Error marking rank as applied", throwable);
-                                return false;
-                            });
-                    }
+    // Completes once the backend acknowledges the grant; on failure the purchase can be applied again
+    private CompletableFuture<Boolean> applyRank(Player player, String rankName, String purchaseId, long receivedAt) {
+        // Send the grant to the player's backend
+        RankOperation grant = RankOperation.grant(player.getUniqueId(), player.getUsername(), rankName, purchaseId);
+        return tracker.track(player, grant, receivedAt).thenApply(ack -> {
+            if (!ack.isSuccess()) {
+                grantsFailed.increment();
+                logger.error("Could not apply rank " + rankName + " to " + player.getUsername() + ": " + ack.getMessage());
+                processedPurchases.release(purchaseId, PurchaseIdempotencyIndex.APPLIED);
+                supabase.updatePurchaseStatus(purchaseId, "error", ack.getMessage());
+                return false;
+            }
+
+            grantsApplied.increment();
+
+            // Notify the player
+            player.sendMessage(Component.text("Your new rank ", NamedTextColor.GREEN)
+                .append(Component.text(rankName, NamedTextColor.GOLD))
+                .append(Component.text(" has been applied!", NamedTextColor.GREEN)));
+
+            // Update purchase status
+            supabase.updatePurchaseStatus(purchaseId, "applied", "Rank has been applied successfully")
+                .exceptionally(throwable -> {
+                    logger.error("Error updating purchase status", throwable);
+                    return null;
                 });
+            return true;
+        });
+    }
+
+    public void checkPendingRanks() {
+        pollPendingRanks(false);
+    }
+
+    // Reads only the online players' pending rows: players already seen by the previous poll from the
+    // high-water mark, players who joined since then from the start, with a full pass every few polls
+    // With grants delivered on login this is only a reconciliation safety net
+    private void pollPendingRanks(boolean reconcile) {
+        if (!polling.compareAndSet(false, true)) {
+            // The previous poll is still paging
+            return;
+        }
+
+        if (++pollsSinceReconcile >= POLLS_PER_RECONCILE) {
+            reconcile = true;
+        }
+        if (reconcile) {
+            pollsSinceReconcile = 0;
+        }
+
+        Set<String> online = new HashSet<>();
+        List<String> fromStart = new ArrayList<>();
+        List<String> incremental = new ArrayList<>();
+        for (Player player : server.getAllPlayers()) {
+            String username = player.getUsername();
+            online.add(username);
+            if (reconcile || !polledPlayers.contains(username)) {
+                fromStart.add(username);
+            } else {
+                incremental.add(username);
+            }
+        }
+
+        PendingCursor since = pollCursor;
+        streamPendingRanks(fromStart, PendingCursor.START)
+            .thenCompose(cursor -> streamPendingRanks(incremental, since).thenApply(cursor::max))
+            .thenAccept(cursor -> {
+                pollCursor = since.max(cursor);
+                polledPlayers = online;
             })
             .exceptionally(throwable -> {
                 logger.error("Error checking pending ranks", throwable);
                 return null;
-            });
+            })
+            .whenComplete((result, throwable) -> polling.set(false));
+    }
+
+    private CompletableFuture<PendingCursor> streamPendingRanks(List<String> usernames, PendingCursor after) {
+        // Chunked so the username filter stays within URL limits
+        CompletableFuture<PendingCursor> result = CompletableFuture.completedFuture(after);
+        for (int i = 0; i < usernames.size(); i += USERNAME_CHUNK_SIZE) {
+            List<String> chunk = usernames.subList(i, Math.min(i + USERNAME_CHUNK_SIZE, usernames.size()));
+            result = result.thenCompose(cursor -> supabase
+                .streamPendingRanks(chunk, after, PENDING_PAGE_SIZE, this::processPendingPage)
+                .thenApply(cursor::max));
+        }
+        return result;
+    }
+
+    private void processPendingPage(List<PendingRank> page) {
+        for (PendingRank rank : page) {
+            processStoredRankUpdate(rank.getUsername(), rank.getRankName(), rank.getPurchaseId());
+        }
     }
 }
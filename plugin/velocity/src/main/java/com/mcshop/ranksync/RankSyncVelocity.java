@@ -3,11 +3,13 @@ package com.mcshop.ranksync;
 import com.google.inject.Inject;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.proxy.ProxyInitializeEvent;
+import com.velocitypowered.api.event.proxy.ProxyShutdownEvent;
 import com.velocitypowered.api.plugin.Plugin;
 import com.velocitypowered.api.plugin.annotation.DataDirectory;
 import com.velocitypowered.api.proxy.ProxyServer;
 import org.slf4j.Logger;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.util.concurrent.TimeUnit;
 
@@ -22,9 +24,15 @@ public class RankSyncVelocity {
     private final ProxyServer server;
     private final Logger logger;
     private final Path dataDirectory;
+    private final RankSyncMetrics metrics = new RankSyncMetrics();
+    private ConfigManager configManager;
     private SupabaseManager supabaseManager;
     private RankManager rankManager;
+    private RankCommandDispatcher commandDispatcher;
+    private DispatchTracker dispatchTracker;
     private WebhookListener webhookListener;
+    private OutboxJournal outboxJournal;
+    private OutboxReplayer outboxReplayer;
 
     @Inject
     public RankSyncVelocity(ProxyServer server, Logger logger, @DataDirectory Path dataDirectory) {
@@ -36,41 +44,109 @@ public class RankSyncVelocity {
     @Subscribe
     public void onProxyInitialization(ProxyInitializeEvent event) {
         // Initialize configuration
-        ConfigManager configManager = new ConfigManager(dataDirectory);
-        configManager.loadConfig();
+        configManager = new ConfigManager(dataDirectory);
+        try {
+            configManager.loadConfig();
+        } catch (IllegalStateException e) {
+            logger.error(e.getMessage() + ", RankSync is disabled until it is fixed and the proxy restarted");
+            return;
+        }
 
         // Initialize Supabase connection
         initializeSupabase(configManager);
 
-        // Initialize rank manager
-        rankManager = new RankManager(server, logger, supabaseManager);
+        // Initialize rank manager and the channels grants are sent and acknowledged on
+        server.getChannelRegistrar().register(RankCommandDispatcher.COMMAND_CHANNEL, AckListener.ACK_CHANNEL);
+        server.getEventManager().register(this, new CommandChannelGuard());
+        commandDispatcher = new RankCommandDispatcher(server, logger, configManager.getDispatchStrategy(), metrics);
+        configManager.addReloadListener(snapshot -> commandDispatcher.setStrategy(snapshot.getDispatchStrategy()));
+        dispatchTracker = new DispatchTracker(commandDispatcher, logger);
+        server.getEventManager().register(this, new AckListener(dispatchTracker, logger, metrics));
+        rankManager = new RankManager(server, logger, supabaseManager, dispatchTracker, metrics);
+
+        // Subscribe to real-time rank updates
+        supabaseManager.subscribeToRankUpdates(rankManager);
+
+        // Deliver pending grants when players join
+        server.getEventManager().register(this, new ConnectionListener(rankManager, commandDispatcher));
+        rankManager.syncPendingRanks();
+
+        // Replay purchases accepted before the last shutdown; the webhook only accepts into the journal
+        try {
+            outboxJournal = OutboxJournal.open(dataDirectory.resolve("journal"));
+            outboxReplayer = new OutboxReplayer(outboxJournal, rankManager, logger);
+            outboxReplayer.start();
+        } catch (IOException e) {
+            logger.error("Failed to open the purchase journal, webhooks are disabled", e);
+        }
 
         // Initialize webhook listener
-        webhookListener = new WebhookListener(configManager.getWebhookPort(), this);
+        if (outboxJournal != null) {
+            try {
+                webhookListener = new WebhookListener(configManager, this);
+            } catch (IOException e) {
+                logger.error("Failed to start webhook listener on port " + configManager.getWebhookPort(), e);
+            }
+        }
+
+        registerMetrics();
 
         // Start background tasks
-        startBackgroundTasks();
+        startBackgroundTasks(configManager);
+
+        // Pick up config.json edits without a restart
+        configManager.startWatching();
 
         logger.info("RankSync Velocity plugin has been initialized!");
     }
 
     private void initializeSupabase(ConfigManager configManager) {
-        supabaseManager = new SupabaseManager(
-            this,
-            configManager.getSupabaseUrl(),
-            configManager.getSupabaseKey()
-        );
+        supabaseManager = new SupabaseManager(this, configManager);
+    }
 
-        // Subscribe to real-time rank updates
-        supabaseManager.subscribeToRankUpdates(rankManager);
+    // Queue depths and grant latencies owned by other components, sampled on scrape
+    private void registerMetrics() {
+        String latencyHelp = "Time between stages of a purchase, from webhook receipt to the backend applying it";
+        metrics.register("ranksync_grant_stage_seconds", latencyHelp, "stage=\"received_to_dispatched\"",
+            dispatchTracker.getReceivedToDispatched());
+        metrics.register("ranksync_grant_stage_seconds", latencyHelp, "stage=\"dispatched_to_applied\"",
+            dispatchTracker.getDispatchedToApplied());
+        metrics.register("ranksync_grant_stage_seconds", latencyHelp, "stage=\"received_to_applied\"",
+            dispatchTracker.getReceivedToApplied());
+
+        metrics.gauge("ranksync_pending_grants", "Grants stored for offline players", "",
+            rankManager::getPendingGrantCount);
+        metrics.gauge("ranksync_grants_awaiting_ack", "Grants dispatched but not yet acknowledged", "",
+            dispatchTracker::getInFlightCount);
+        metrics.gauge("ranksync_dispatch_held", "Rank operations held for players without a backend", "",
+            commandDispatcher::getHeldCount);
+
+        StorageBackend storage = supabaseManager.getStorageBackend();
+        metrics.gauge("ranksync_storage_queue_depth", "Supabase calls waiting for a storage thread", "",
+            storage::getQueueDepth);
+        metrics.gauge("ranksync_storage_in_flight", "Supabase calls running", "", storage::getInFlight);
+        metrics.gauge("ranksync_storage_rejected", "Supabase calls rejected because the queue was full", "",
+            storage::getRejectedCount);
+        metrics.gauge("ranksync_status_writes_pending", "Purchase statuses waiting for the next flush", "",
+            supabaseManager::getPendingStatusCount);
+        metrics.gauge("ranksync_rank_inserts_pending", "Offline grants waiting for the next insert batch", "",
+            supabaseManager::getPendingInsertCount);
+
+        if (outboxJournal != null) {
+            metrics.gauge("ranksync_outbox_queued", "Journaled purchases waiting for delivery", "",
+                outboxReplayer::getQueuedCount);
+            metrics.gauge("ranksync_outbox_segments", "Journal segment files on disk", "",
+                outboxJournal::getSegmentCount);
+        }
     }
 
-    private void startBackgroundTasks() {
-        // Schedule periodic rank sync check
+    private void startBackgroundTasks(ConfigManager configManager) {
+        // Schedule periodic reconciliation of pending ranks
+        int interval = configManager.getReconcileIntervalSeconds();
         server.getScheduler()
             .buildTask(this, () -> rankManager.checkPendingRanks())
-            .delay(30, TimeUnit.SECONDS)
-            .repeat(30, TimeUnit.SECONDS)
+            .delay(interval, TimeUnit.SECONDS)
+            .repeat(interval, TimeUnit.SECONDS)
             .schedule();
     }
 
@@ -86,13 +162,54 @@ public class RankSyncVelocity {
         return rankManager;
     }
 
+    public RankSyncMetrics getMetrics() {
+        return metrics;
+    }
+
     public SupabaseManager getSupabaseManager() {
         return supabaseManager;
     }
 
+    public OutboxJournal getOutboxJournal() {
+        return outboxJournal;
+    }
+
+    public OutboxReplayer getOutboxReplayer() {
+        return outboxReplayer;
+    }
+
+    @Subscribe
+    public void onProxyShutdown(ProxyShutdownEvent event) {
+        onDisable();
+    }
+
     public void onDisable() {
+        if (configManager != null) {
+            configManager.stopWatching();
+        }
         if (webhookListener != null) {
             webhookListener.stop();
         }
+        if (outboxReplayer != null) {
+            outboxReplayer.stop();
+        }
+        if (dispatchTracker != null) {
+            dispatchTracker.close();
+        }
+        if (commandDispatcher != null) {
+            commandDispatcher.close();
+        }
+        if (supabaseManager != null) {
+            // Flush buffered status writes
+            supabaseManager.close();
+        }
+        if (outboxJournal != null) {
+            try {
+                // Records deliveries acknowledged during the flush above
+                outboxJournal.close();
+            } catch (IOException e) {
+                logger.error("Error closing the purchase journal", e);
+            }
+        }
     }
 }
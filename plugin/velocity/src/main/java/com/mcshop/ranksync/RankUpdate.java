@@ -0,0 +1,36 @@
+package com.mcshop.ranksync;
+
+public class RankUpdate {
+    private final String username;
+    private final String rankName;
+    private final String purchaseId;
+    private final long receivedAt;
+
+    public RankUpdate(String username, String rankName, String purchaseId) {
+        this(username, rankName, purchaseId, 0);
+    }
+
+    public RankUpdate(String username, String rankName, String purchaseId, long receivedAt) {
+        this.username = username;
+        this.rankName = rankName;
+        this.purchaseId = purchaseId;
+        this.receivedAt = receivedAt;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getRankName() {
+        return rankName;
+    }
+
+    public String getPurchaseId() {
+        return purchaseId;
+    }
+
+    // When the webhook accepted the purchase, 0 if unknown
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+}
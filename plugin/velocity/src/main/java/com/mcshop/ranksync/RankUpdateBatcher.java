@@ -0,0 +1,119 @@
+package com.mcshop.ranksync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Collects rank_updates rows for a few milliseconds (or until the batch is full)
+// and inserts them as one array, completing each caller's future from the result.
+public class RankUpdateBatcher {
+    private final SupabaseManager supabase;
+    private final long lingerMillis;
+    private final int batchSize;
+    private final ConcurrentLinkedQueue<PendingInsert> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean lingerScheduled = new AtomicBoolean();
+    private final AtomicBoolean fullFlushScheduled = new AtomicBoolean();
+    private volatile boolean closed;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RankSync-RankUpdateBatch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public RankUpdateBatcher(SupabaseManager supabase, long lingerMillis, int batchSize) {
+        this.supabase = supabase;
+        this.lingerMillis = lingerMillis;
+        this.batchSize = batchSize;
+    }
+
+    public CompletableFuture<Boolean> submit(Map<String, Object> row) {
+        if (closed) {
+            return CompletableFuture.completedFuture(false);
+        }
+        PendingInsert insert = new PendingInsert(row);
+        queue.add(insert);
+        int size = queued.incrementAndGet();
+
+        try {
+            if (size >= batchSize) {
+                if (fullFlushScheduled.compareAndSet(false, true)) {
+                    flusher.execute(this::flush);
+                }
+            } else if (lingerScheduled.compareAndSet(false, true)) {
+                flusher.schedule(this::flush, lingerMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            // Closed while this was being queued, close() may already have flushed
+            flush();
+        }
+        return insert.future;
+    }
+
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    public void close() {
+        closed = true;
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void flush() {
+        lingerScheduled.set(false);
+        fullFlushScheduled.set(false);
+
+        List<PendingInsert> batch = new ArrayList<>(batchSize);
+        PendingInsert insert;
+        while ((insert = queue.poll()) != null) {
+            batch.add(insert);
+            if (batch.size() >= batchSize) {
+                write(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            write(batch);
+        }
+    }
+
+    private void write(List<PendingInsert> batch) {
+        queued.addAndGet(-batch.size());
+
+        List<Map<String, Object>> rows = new ArrayList<>(batch.size());
+        for (PendingInsert insert : batch) {
+            rows.add(insert.row);
+        }
+
+        supabase.insertRankUpdates(rows)
+            .exceptionally(throwable -> false)
+            .thenAccept(success -> {
+                for (PendingInsert insert : batch) {
+                    insert.future.complete(success);
+                }
+            });
+    }
+
+    private static class PendingInsert {
+        private final Map<String, Object> row;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        private PendingInsert(Map<String, Object> row) {
+            this.row = row;
+        }
+    }
+}
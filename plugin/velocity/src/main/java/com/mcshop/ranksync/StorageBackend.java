@@ -0,0 +1,32 @@
+package com.mcshop.ranksync;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+// The PostgREST calls SupabaseManager makes, selected by storageBackend in config.json.
+// Failed calls complete exceptionally with the PostgREST error message.
+public interface StorageBackend {
+    CompletableFuture<Void> insertRankUpdates(List<Map<String, Object>> rankUpdates);
+
+    // Applies the same update to the purchases rows with the given purchase ids
+    CompletableFuture<Void> updatePurchaseStatuses(Collection<String> purchaseIds, Map<String, Object> update);
+
+    // Pending rows after the cursor in (created_at, id) order, for the given usernames or all if null
+    CompletableFuture<List<PendingRank>> selectPendingRanks(Collection<String> usernames, PendingCursor after, int limit);
+
+    CompletableFuture<Void> updateRankUpdate(String purchaseId, Map<String, Object> update);
+
+    // Calls the listener with the JSON of each inserted rank_updates row; false if not supported
+    boolean subscribeToRankUpdates(Consumer<String> listener);
+
+    int getQueueDepth();
+
+    int getInFlight();
+
+    long getRejectedCount();
+
+    void close();
+}
@@ -0,0 +1,111 @@
+package com.mcshop.ranksync;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Runs all blocking Supabase calls on a bounded pool of our own, so a slow database
+// backs up here instead of on ForkJoinPool.commonPool() which the proxy shares.
+public class StorageExecutor {
+    private static final long REJECTION_WARN_INTERVAL_MILLIS = 10_000;
+
+    private final ThreadPoolExecutor executor;
+    private final Logger logger;
+    private final boolean callerRuns;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicLong lastRejectionWarning = new AtomicLong();
+
+    public StorageExecutor(Logger logger, int threads, int queueCapacity, String rejectionPolicy) {
+        this.logger = logger;
+        this.callerRuns = "caller-runs".equalsIgnoreCase(rejectionPolicy);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+            threads,
+            threads,
+            60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueCapacity),
+            runnable -> {
+                Thread thread = new Thread(runnable, "RankSync-Storage-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy()
+        );
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public <T> CompletableFuture<T> supply(Supplier<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Runnable runnable = () -> {
+            inFlight.incrementAndGet();
+            try {
+                future.complete(task.get());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        };
+
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            warnRejected();
+            if (callerRuns && !executor.isShutdown()) {
+                // Push back on the submitting thread instead of failing
+                runnable.run();
+            } else {
+                future.completeExceptionally(e);
+            }
+        }
+        return future;
+    }
+
+    public CompletableFuture<Void> run(Runnable task) {
+        return supply(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void warnRejected() {
+        long now = System.currentTimeMillis();
+        long last = lastRejectionWarning.get();
+        if (now - last >= REJECTION_WARN_INTERVAL_MILLIS && lastRejectionWarning.compareAndSet(last, now)) {
+            logger.warn("Supabase storage queue is full (" + getQueueDepth() + " queued, " + getInFlight()
+                + " in flight, " + getRejectedCount() + " rejected so far)");
+        }
+    }
+}
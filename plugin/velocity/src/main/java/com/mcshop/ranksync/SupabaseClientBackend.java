@@ -0,0 +1,122 @@
+package com.mcshop.ranksync;
+
+import com.google.gson.stream.JsonReader;
+import io.github.supabase.Client;
+import io.github.supabase.ClientOptions;
+import io.github.supabase.PostgrestResponse;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+// Storage through the supabase-java client. Its calls block, so they run on the storage executor.
+public class SupabaseClientBackend implements StorageBackend {
+    private static final String PENDING_COLUMNS = "id,username,rank,purchase_id,created_at";
+
+    private final Client supabase;
+    private final StorageExecutor storage;
+
+    public SupabaseClientBackend(Logger logger, ConfigManager config) {
+        this.supabase = new Client(new ClientOptions(config.getSupabaseUrl(), config.getSupabaseKey()));
+        this.storage = new StorageExecutor(
+            logger,
+            config.getStorageThreads(),
+            config.getStorageQueueCapacity(),
+            config.getStorageRejectionPolicy()
+        );
+    }
+
+    @Override
+    public CompletableFuture<Void> insertRankUpdates(List<Map<String, Object>> rankUpdates) {
+        return storage.run(() -> check(supabase
+            .from("rank_updates")
+            .insert(rankUpdates)
+            .execute()));
+    }
+
+    @Override
+    public CompletableFuture<Void> updatePurchaseStatuses(Collection<String> purchaseIds, Map<String, Object> update) {
+        return storage.run(() -> check(supabase
+            .from("purchases")
+            .update(update)
+            .in("purchase_id", purchaseIds)
+            .execute()));
+    }
+
+    @Override
+    public CompletableFuture<List<PendingRank>> selectPendingRanks(Collection<String> usernames, PendingCursor after,
+                                                                   int limit) {
+        return storage.supply(() -> {
+            PostgrestResponse response = (usernames == null
+                    ? supabase.from("rank_updates").select(PENDING_COLUMNS).eq("status", "pending")
+                    : supabase.from("rank_updates").select(PENDING_COLUMNS).eq("status", "pending").in("username", usernames))
+                .or(after.toFilter())
+                .order("created_at", true)
+                .order("id", true)
+                .limit(limit)
+                .execute();
+            check(response);
+
+            List<PendingRank> page = new ArrayList<>();
+            try {
+                for (Object value : response.getData().values()) {
+                    page.add(PendingRank.read(new JsonReader(new StringReader((String) value))));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return page;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> updateRankUpdate(String purchaseId, Map<String, Object> update) {
+        return storage.run(() -> check(supabase
+            .from("rank_updates")
+            .update(update)
+            .eq("purchase_id", purchaseId)
+            .execute()));
+    }
+
+    @Override
+    public boolean subscribeToRankUpdates(Consumer<String> listener) {
+        supabase.realtime()
+            .channel("rank_updates")
+            .on("INSERT", listener::accept)
+            .subscribe();
+        return true;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return storage.getQueueDepth();
+    }
+
+    @Override
+    public int getInFlight() {
+        return storage.getInFlight();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return storage.getRejectedCount();
+    }
+
+    @Override
+    public void close() {
+        storage.shutdown();
+    }
+
+    private static void check(PostgrestResponse response) {
+        if (response.hasError()) {
+            throw new IllegalStateException(response.getError().getMessage());
+        }
+    }
+}
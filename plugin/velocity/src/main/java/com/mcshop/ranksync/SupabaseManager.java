@@ -1,23 +1,51 @@
 package com.mcshop.ranksync;
 
-import io.github.supabase.Client;
-import io.github.supabase.ClientOptions;
-import io.github.supabase.PostgrestResponse;
-import io.github.supabase.data.PostgrestError;
-import org.json.JSONObject;
+import com.google.gson.stream.JsonReader;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class SupabaseManager {
-    private final Client supabase;
+    private final StorageBackend backend;
     private final RankSyncVelocity plugin;
-
-    public SupabaseManager(RankSyncVelocity plugin, String supabaseUrl, String supabaseKey) {
+    private final PurchaseStatusBuffer statusBuffer;
+    private final RankUpdateBatcher rankUpdateBatcher;
+    private final StorageCall insertCall;
+    private final StorageCall statusCall;
+    private final StorageCall pendingCall;
+    private final StorageCall appliedCall;
+
+    public SupabaseManager(RankSyncVelocity plugin, ConfigManager config) {
         this.plugin = plugin;
-        ClientOptions options = new ClientOptions(supabaseUrl, supabaseKey);
-        this.supabase = new Client(options);
+        this.backend = "http".equals(config.getStorageBackend())
+            ? new HttpStorageBackend(plugin.getLogger(), config)
+            : new SupabaseClientBackend(plugin.getLogger(), config);
+        this.statusBuffer = new PurchaseStatusBuffer(
+            this,
+            config.getStatusFlushIntervalMillis(),
+            config.getStatusFlushBatchSize()
+        );
+        this.rankUpdateBatcher = new RankUpdateBatcher(
+            this,
+            config.getRankInsertLingerMillis(),
+            config.getRankInsertBatchSize()
+        );
+
+        RankSyncMetrics metrics = plugin.getMetrics();
+        this.insertCall = new StorageCall(metrics, "insert_rank_updates");
+        this.statusCall = new StorageCall(metrics, "update_purchase_statuses");
+        this.pendingCall = new StorageCall(metrics, "select_pending_ranks");
+        this.appliedCall = new StorageCall(metrics, "mark_rank_applied");
     }
 
     public CompletableFuture<Boolean> queueRankUpdate(String username, String rankName, String purchaseId) {
@@ -28,111 +56,174 @@ public class SupabaseManager {
         rankUpdate.put("status", "pending");
         rankUpdate.put("created_at", System.currentTimeMillis());
 
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                PostgrestResponse response = supabase
-                    .from("rank_updates")
-                    .insert(rankUpdate)
-                    .execute();
-
-                if (response.hasError()) {
-                    PostgrestError error = response.getError();
-                    plugin.getLogger().severe("Error queueing rank update: " + error.getMessage());
+        // Sent together with other inserts from the same few milliseconds
+        return rankUpdateBatcher.submit(rankUpdate);
+    }
+
+    CompletableFuture<Boolean> insertRankUpdates(List<Map<String, Object>> rankUpdates) {
+        return insertCall.timed(() -> backend.insertRankUpdates(rankUpdates))
+            .handle((result, throwable) -> {
+                if (throwable != null) {
+                    plugin.getLogger().error("Error queueing " + rankUpdates.size() + " rank update(s): "
+                        + messageOf(throwable));
                     return false;
                 }
                 return true;
-            } catch (Exception e) {
-                plugin.getLogger().severe("Error queueing rank update: " + e.getMessage());
-                return false;
-            }
-        });
+            });
     }
 
     public CompletableFuture<Void> updatePurchaseStatus(String purchaseId, String status, String message) {
-        Map<String, Object> statusUpdate = new HashMap<>();
-        statusUpdate.put("status", status);
-        statusUpdate.put("message", message);
-        statusUpdate.put("updated_at", System.currentTimeMillis());
+        // Coalesced with other updates for the same purchase and written in bulk; the future completes
+        // once the status is written, failed writes are retried by later flushes
+        return statusBuffer.submit(purchaseId, status, message);
+    }
 
-        return CompletableFuture.runAsync(() -> {
-            try {
-                PostgrestResponse response = supabase
-                    .from("purchases")
-                    .update(statusUpdate)
-                    .eq("purchase_id", purchaseId)
-                    .execute();
-
-                if (response.hasError()) {
-                    PostgrestError error = response.getError();
-                    plugin.getLogger().severe("Error updating purchase status: " + error.getMessage());
+    // Sets one status on every listed purchase; updated_at is maintained by the purchases trigger
+    CompletableFuture<Void> writePurchaseStatuses(String status, String message, List<String> purchaseIds) {
+        Map<String, Object> update = new HashMap<>();
+        update.put("status", toPurchaseStatus(status));
+        update.put("message", message);
+        return statusCall.timed(() -> backend.updatePurchaseStatuses(purchaseIds, update))
+            .whenComplete((result, throwable) -> {
+                if (throwable != null) {
+                    plugin.getLogger().error("Error updating purchase status: " + messageOf(throwable));
                 }
-            } catch (Exception e) {
-                plugin.getLogger().severe("Error updating purchase status: " + e.getMessage());
-            }
-        });
+            });
     }
 
-    public CompletableFuture<Map<String, Object>> getPendingRanks() {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                PostgrestResponse response = supabase
-                    .from("rank_updates")
-                    .select()
-                    .eq("status", "pending")
-                    .execute();
-
-                if (response.hasError()) {
-                    PostgrestError error = response.getError();
-                    plugin.getLogger().severe("Error getting pending ranks: " + error.getMessage());
-                    return new HashMap<>();
-                }
+    // Pages through pending rows after the cursor in (created_at, id) order, handing each page to the
+    // consumer as it arrives. Only rows for the given usernames are read, or every row if usernames is null.
+    // Completes with the cursor of the last row seen.
+    public CompletableFuture<PendingCursor> streamPendingRanks(Collection<String> usernames, PendingCursor after,
+                                                               int pageSize, Consumer<List<PendingRank>> pageConsumer) {
+        if (usernames != null && usernames.isEmpty()) {
+            return CompletableFuture.completedFuture(after);
+        }
+
+        return fetchPendingPage(usernames, after, pageSize).thenCompose(page -> {
+            if (page.isEmpty()) {
+                return CompletableFuture.completedFuture(after);
+            }
 
-                return response.getData();
-            } catch (Exception e) {
-                plugin.getLogger().severe("Error getting pending ranks: " + e.getMessage());
-                return new HashMap<>();
+            pageConsumer.accept(page);
+            PendingCursor last = PendingCursor.of(page.get(page.size() - 1));
+            if (page.size() < pageSize) {
+                return CompletableFuture.completedFuture(last);
             }
+            return streamPendingRanks(usernames, last, pageSize, pageConsumer);
         });
     }
 
+    private CompletableFuture<List<PendingRank>> fetchPendingPage(Collection<String> usernames, PendingCursor after, int pageSize) {
+        return pendingCall.timed(() -> backend.selectPendingRanks(usernames, after, pageSize))
+            .whenComplete((page, throwable) -> {
+                if (throwable != null) {
+                    plugin.getLogger().error("Error getting pending ranks: " + messageOf(throwable));
+                }
+            })
+            .thenApply(page -> {
+                page.sort(Comparator.comparing(PendingCursor::of));
+                return page;
+            });
+    }
+
     public CompletableFuture<Boolean> markRankAsApplied(String purchaseId) {
         Map<String, Object> update = new HashMap<>();
         update.put("status", "applied");
         update.put("applied_at", System.currentTimeMillis());
 
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                PostgrestResponse response = supabase
-                    .from("rank_updates")
-                    .update(update)
-                    .eq("purchase_id", purchaseId)
-                    .execute();
-
-                if (response.hasError()) {
-                    PostgrestError error = response.getError();
-                    plugin.getLogger().severe("Error marking rank as applied: " + error.getMessage());
+        return appliedCall.timed(() -> backend.updateRankUpdate(purchaseId, update))
+            .handle((result, throwable) -> {
+                if (throwable != null) {
+                    plugin.getLogger().error("Error marking rank as applied: " + messageOf(throwable));
                     return false;
                 }
                 return true;
-            } catch (Exception e) {
-                plugin.getLogger().severe("Error marking rank as applied: " + e.getMessage());
-                return false;
-            }
-        });
+            });
     }
 
     // Subscribe to real-time rank updates
     public void subscribeToRankUpdates(RankManager rankManager) {
-        supabase.realtime()
-            .channel("rank_updates")
-            .on("INSERT", payload -> {
-                JSONObject data = new JSONObject(payload);
-                String username = data.getString("username");
-                String rankName = data.getString("rank");
-                String purchaseId = data.getString("purchase_id");
-                
-                rankManager.processRankUpdate(username, rankName, purchaseId);
-            })
-            .subscribe();
+        boolean subscribed = backend.subscribeToRankUpdates(payload -> {
+            PurchaseRecord record = new PurchaseRecord();
+            try {
+                record.readDocument(new JsonReader(new StringReader(payload)));
+            } catch (IOException | IllegalStateException e) {
+                plugin.getLogger().error("Malformed realtime rank update: " + e.getMessage());
+                return;
+            }
+            if (!record.isComplete()) {
+                plugin.getLogger().error("Incomplete realtime rank update: " + payload);
+                return;
+            }
+
+            rankManager.processStoredRankUpdate(record.getUsername(), record.getRank(), record.getPurchaseId());
+        });
+        if (!subscribed) {
+            plugin.getLogger().info("Realtime updates are not available with this storage backend, rows inserted "
+                + "elsewhere are picked up on login and by the reconcile poll");
+        }
+    }
+
+    public StorageBackend getStorageBackend() {
+        return backend;
+    }
+
+    public int getPendingStatusCount() {
+        return statusBuffer.getPendingCount();
+    }
+
+    public int getPendingInsertCount() {
+        return rankUpdateBatcher.getQueuedCount();
+    }
+
+    public void close() {
+        rankUpdateBatcher.close();
+        statusBuffer.close();
+        backend.close();
+    }
+
+    // purchases.status only allows pending, completed and failed; the detail stays in message
+    private static String toPurchaseStatus(String status) {
+        return switch (status) {
+            case "applied" -> "completed";
+            case "error" -> "failed";
+            default -> "pending";
+        };
+    }
+
+    private static String messageOf(Throwable throwable) {
+        Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+            ? throwable.getCause()
+            : throwable;
+        return cause.getMessage();
+    }
+
+    // Latency and error count of one kind of Supabase call, from issuing it to its completion
+    private static class StorageCall {
+        private final LatencyHistogram latency;
+        private final LongAdder errors;
+
+        private StorageCall(RankSyncMetrics metrics, String operation) {
+            String labels = "operation=\"" + operation + "\"";
+            this.latency = metrics.histogram("ranksync_supabase_call_seconds", "Supabase call latency", labels);
+            this.errors = metrics.counter("ranksync_supabase_errors_total", "Failed Supabase calls", labels);
+        }
+
+        private <T> CompletableFuture<T> timed(Supplier<CompletableFuture<T>> call) {
+            long start = System.nanoTime();
+            CompletableFuture<T> future;
+            try {
+                future = call.get();
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            return future.whenComplete((result, throwable) -> {
+                latency.record((System.nanoTime() - start) / 1_000_000);
+                if (throwable != null) {
+                    errors.increment();
+                }
+            });
+        }
     }
 }
@@ -3,31 +3,113 @@ package com.mcshop.ranksync;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
-import org.json.JSONObject;
+import com.google.gson.stream.JsonWriter;
 import org.slf4j.Logger;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class WebhookListener {
+    private static final int BATCH_CHUNK_SIZE = 100;
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+    private static final int MAX_BATCH_RECORDS = 10_000;
+    private static final int MAX_BATCH_BODY_BYTES = 4 * 1024 * 1024;
+
     private final HttpServer server;
+    private final ExecutorService executor;
+    private volatile WebhookSignature webhookSignature;
     private final RankSyncVelocity plugin;
     private final Logger logger;
+    private final RankSyncMetrics metrics;
+    private final LongAdder purchasesAccepted;
+    private final LongAdder purchasesDuplicate;
+    private final LongAdder journalFailures;
+    // Keyed by path and status code
+    private final ConcurrentHashMap<String, LongAdder> responses = new ConcurrentHashMap<>();
 
-    public WebhookListener(int port, RankSyncVelocity plugin) throws IOException {
+    public WebhookListener(ConfigManager config, RankSyncVelocity plugin) throws IOException {
         this.plugin = plugin;
         this.logger = plugin.getLogger();
+        this.metrics = plugin.getMetrics();
+        this.purchasesAccepted = metrics.counter("ranksync_purchases_accepted_total",
+            "Purchases journaled from webhooks", "");
+        this.purchasesDuplicate = metrics.counter("ranksync_purchases_duplicate_total",
+            "Webhook redeliveries of purchases that were already processed", "");
+        this.journalFailures = metrics.counter("ranksync_journal_failures_total",
+            "Webhook purchases refused because they could not be journaled", "");
+        applySignatureSettings(config.getSnapshot());
+        config.addReloadListener(this::applySignatureSettings);
         
-        server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.createContext("/webhook/purchase", new PurchaseWebhookHandler());
-        server.setExecutor(Executors.newFixedThreadPool(4));
+        server = HttpServer.create(new InetSocketAddress(config.getWebhookPort()), config.getWebhookBacklog());
+        server.createContext("/webhook/purchase", timed("/webhook/purchase", new PurchaseWebhookHandler()));
+        server.createContext("/webhook/purchases/batch", timed("/webhook/purchases/batch", new BatchWebhookHandler()));
+        server.createContext("/metrics", new MetricsHandler());
+        executor = createExecutor(config);
+        server.setExecutor(executor);
         server.start();
         
-        logger.info("Webhook listener started on port " + port);
+        logger.info("Webhook listener started on port " + config.getWebhookPort());
+    }
+
+    // The secret and tolerance can change on reload; requests already being verified keep the old ones
+    private void applySignatureSettings(ConfigSnapshot snapshot) {
+        webhookSignature = new WebhookSignature(snapshot.getWebhookSecret(), snapshot.getWebhookToleranceSeconds());
+        if (ConfigManager.DEFAULT_WEBHOOK_SECRET.equals(snapshot.getWebhookSecret())) {
+            logger.warn("The webhook secret is still the default value, change webhookSecret in config.json");
+        }
+    }
+
+    private HttpHandler timed(String path, HttpHandler handler) {
+        LatencyHistogram latency = metrics.histogram("ranksync_webhook_request_seconds",
+            "Time to handle a webhook request", "path=\"" + path + "\"");
+        return exchange -> {
+            long start = System.nanoTime();
+            try {
+                handler.handle(exchange);
+            } finally {
+                latency.record((System.nanoTime() - start) / 1_000_000);
+            }
+        };
+    }
+
+    private ExecutorService createExecutor(ConfigManager config) {
+        if ("virtual".equalsIgnoreCase(config.getWebhookIngress())) {
+            ExecutorService virtualExecutor = newVirtualThreadExecutor();
+            if (virtualExecutor != null) {
+                logger.info("Webhook listener is running requests on virtual threads");
+                return virtualExecutor;
+            }
+            logger.warn("Virtual threads are not available on this JVM, falling back to a pool of "
+                + config.getWebhookThreads() + " threads");
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(config.getWebhookThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "RankSync-Webhook-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        // Looked up reflectively so the plugin still builds for and runs on Java 17
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
     }
 
     private class PurchaseWebhookHandler implements HttpHandler {
@@ -38,87 +120,351 @@ public class WebhookListener {
                 return;
             }
 
+            // Reject unsigned or stale requests before reading the body
+            // One snapshot of the signature settings for the whole request
+            WebhookSignature signer = webhookSignature;
+            String timestamp = exchange.getRequestHeaders().getFirst(WebhookSignature.TIMESTAMP_HEADER);
+            String signature = exchange.getRequestHeaders().getFirst(WebhookSignature.SIGNATURE_HEADER);
+            if (!signer.checkHeaders(timestamp, signature)) {
+                sendResponse(exchange, 401, "Invalid signature");
+                return;
+            }
+
             // Read request body
-            String requestBody = readRequestBody(exchange.getRequestBody());
+            byte[] requestBody = readRequestBody(exchange.getRequestBody());
+            if (requestBody == null) {
+                sendResponse(exchange, 413, "Request body too large");
+                return;
+            }
+
+            // Validate webhook signature over the raw bytes, before any JSON is parsed
+            if (!signer.verify(timestamp, signature, requestBody, requestBody.length)) {
+                sendResponse(exchange, 401, "Invalid signature");
+                return;
+            }
             
+            // Parsed from the verified bytes as they are decoded
+            PurchaseRecord record = new PurchaseRecord();
             try {
-                JSONObject payload = new JSONObject(requestBody);
-                
-                // Validate webhook signature
-                String signature = exchange.getRequestHeaders().getFirst("X-Webhook-Signature");
-                if (!validateWebhookSignature(payload, signature)) {
-                    sendResponse(exchange, 401, "Invalid signature");
+                record.readDocument(requestBody, 0, requestBody.length);
+            } catch (IOException | IllegalStateException e) {
+                sendResponse(exchange, 400, "Malformed JSON");
+                return;
+            }
+            if (!record.isComplete()) {
+                sendResponse(exchange, 400, "Missing username, rank or purchaseId");
+                return;
+            }
+            RankUpdate update = record.toUpdate(System.currentTimeMillis());
+
+            try {
+                String purchaseId = update.getPurchaseId();
+
+                // Redeliveries of a purchase that is already accepted, queued or applied are acknowledged
+                // without side effects; the claim is atomic, so concurrent redeliveries journal it once
+                if (!plugin.getRankManager().claimPurchase(purchaseId)) {
+                    purchasesDuplicate.increment();
+                    sendResponse(exchange, 200, "Purchase already processed");
                     return;
                 }
 
-                // Process the purchase
-                processPurchase(payload);
-                
-                sendResponse(exchange, 200, "Purchase processed successfully");
+                // Only acknowledge once the purchase is in the local journal, so the storefront retries otherwise
+                List<OutboxJournal.Entry> entries = journalPurchases(List.of(update));
+                if (entries == null) {
+                    plugin.getRankManager().releasePurchase(purchaseId);
+                    sendResponse(exchange, 503, "Purchase could not be accepted");
+                    return;
+                }
+                try {
+                    sendResponse(exchange, 202, "Purchase accepted");
+                } finally {
+                    // Deliver the rank after the response, even if the client has gone away: the purchase is
+                    // claimed, so a redelivery would be answered as a duplicate
+                    plugin.getOutboxReplayer().submit(entries);
+                }
             } catch (Exception e) {
                 logger.error("Error processing webhook", e);
                 sendResponse(exchange, 500, "Internal Server Error");
             }
         }
+    }
+
+    // Returns null when the body exceeds the limit
+    static byte[] readRequestBody(InputStream inputStream) throws IOException {
+        byte[] body = inputStream.readNBytes(MAX_BODY_BYTES + 1);
+        return body.length > MAX_BODY_BYTES ? null : body;
+    }
+
+    private class BatchWebhookHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "Method Not Allowed");
+                return;
+            }
 
-        private String readRequestBody(InputStream inputStream) throws IOException {
-            StringBuilder body = new StringBuilder();
-            byte[] buffer = new byte[1024];
-            int length;
-            while ((length = inputStream.read(buffer)) > 0) {
-                body.append(new String(buffer, 0, length, StandardCharsets.UTF_8));
+            // One snapshot of the signature settings for the whole request
+            WebhookSignature signer = webhookSignature;
+            String timestamp = exchange.getRequestHeaders().getFirst(WebhookSignature.TIMESTAMP_HEADER);
+            String signature = exchange.getRequestHeaders().getFirst(WebhookSignature.SIGNATURE_HEADER);
+            if (!signer.checkHeaders(timestamp, signature)) {
+                sendResponse(exchange, 401, "Invalid signature");
+                return;
             }
-            return body.toString();
-        }
 
-        private boolean validateWebhookSignature(JSONObject payload, String signature) {
-            // TODO: Implement proper signature validation using HMAC
-            // This should be implemented with a shared secret between the website and plugin
-            return true; // Temporary for development
-        }
+            // Not streamed: the signature covers the whole body, so nothing can be parsed or queued until
+            // the last byte has been read and verified. The raw bytes are held, capped at
+            // MAX_BATCH_BODY_BYTES, and records are decoded from them in place without another copy.
+            if (contentLength(exchange) > MAX_BATCH_BODY_BYTES) {
+                sendResponse(exchange, 413, "Request body too large");
+                return;
+            }
+            byte[] requestBody = exchange.getRequestBody().readNBytes(MAX_BATCH_BODY_BYTES + 1);
+            if (requestBody.length > MAX_BATCH_BODY_BYTES) {
+                sendResponse(exchange, 413, "Request body too large");
+                return;
+            }
+            if (!signer.verify(timestamp, signature, requestBody, requestBody.length)) {
+                sendResponse(exchange, 401, "Invalid signature");
+                return;
+            }
 
-        private void processPurchase(JSONObject payload) {
-            String username = payload.getString("username");
-            String rankName = payload.getString("rank");
-            String purchaseId = payload.getString("purchaseId");
+            List<BatchResult> results = new ArrayList<>();
+            List<BatchRecord> records = new ArrayList<>();
+            long receivedAt = System.currentTimeMillis();
+
+            // One record per line, each decoded straight from its bytes into one reused record; a '\n'
+            // byte is never part of a multi-byte character, so lines can be split before decoding
+            PurchaseRecord record = new PurchaseRecord();
+            int index = 0;
+            int next = 0;
+            while (next < requestBody.length) {
+                int start = next;
+                int end = start;
+                while (end < requestBody.length && requestBody[end] != '\n') {
+                    end++;
+                }
+                next = end + 1;
+                if (isBlank(requestBody, start, end)) {
+                    continue;
+                }
+
+                if (index >= MAX_BATCH_RECORDS) {
+                    sendResponse(exchange, 413, "Batch exceeds " + MAX_BATCH_RECORDS + " records");
+                    return;
+                }
+                BatchResult result = new BatchResult(index++);
+                results.add(result);
+
+                if (end - start > MAX_BODY_BYTES) {
+                    result.reject("Record exceeds " + MAX_BODY_BYTES + " bytes");
+                    continue;
+                }
+
+                RankUpdate update = parseRecord(record, requestBody, start, end, receivedAt, result);
+                if (update != null) {
+                    records.add(new BatchRecord(update, result));
+                }
+            }
 
-            // Update the rank through the RankManager
-            plugin.getRankManager().updatePurchaseStatus(purchaseId, "processing", "Processing rank purchase");
-            
             try {
-                // Queue the rank update
-                JSONObject rankUpdate = new JSONObject()
-                    .put("username", username)
-                    .put("rank", rankName)
-                    .put("purchaseId", purchaseId);
-
-                plugin.getRankManager().processRankUpdate(rankUpdate);
-                
-                plugin.getRankManager().updatePurchaseStatus(purchaseId, "queued", "Rank update queued");
+                for (int i = 0; i < records.size(); i += BATCH_CHUNK_SIZE) {
+                    acceptChunk(records.subList(i, Math.min(i + BATCH_CHUNK_SIZE, records.size())));
+                }
             } catch (Exception e) {
-                logger.error("Error processing purchase for " + username, e);
-                plugin.getRankManager().updatePurchaseStatus(purchaseId, "error", e.getMessage());
+                logger.error("Error processing batch webhook", e);
+                sendResponse(exchange, 500, "Internal Server Error");
+                return;
             }
+
+            sendJson(exchange, 200, BatchResult.toJson(results));
         }
 
-        private void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
-            exchange.getResponseHeaders().set("Content-Type", "application/json");
-            byte[] responseBytes = new JSONObject()
-                .put("status", statusCode)
-                .put("message", response)
-                .toString()
-                .getBytes(StandardCharsets.UTF_8);
-            
-            exchange.sendResponseHeaders(statusCode, responseBytes.length);
+        private RankUpdate parseRecord(PurchaseRecord record, byte[] body, int start, int end, long receivedAt,
+                                       BatchResult result) {
+            try {
+                record.readDocument(body, start, end);
+            } catch (IOException | IllegalStateException e) {
+                result.reject("Malformed JSON");
+                return null;
+            }
+
+            result.purchaseId = record.getPurchaseId();
+            if (!record.isComplete()) {
+                result.reject("Missing username, rank or purchaseId");
+                return null;
+            }
+            return record.toUpdate(receivedAt);
+        }
+
+        private void acceptChunk(List<BatchRecord> chunk) {
+            // Journal the chunk with a single fsync, then dispatch what was accepted
+            List<BatchRecord> fresh = new ArrayList<>(chunk.size());
+            List<RankUpdate> updates = new ArrayList<>(chunk.size());
+            for (BatchRecord record : chunk) {
+                if (!plugin.getRankManager().claimPurchase(record.update.getPurchaseId())) {
+                    purchasesDuplicate.increment();
+                    record.result.status = "duplicate";
+                } else {
+                    fresh.add(record);
+                    updates.add(record.update);
+                }
+            }
+            if (updates.isEmpty()) {
+                return;
+            }
+
+            List<OutboxJournal.Entry> entries = journalPurchases(updates);
+            for (BatchRecord record : fresh) {
+                if (entries == null) {
+                    plugin.getRankManager().releasePurchase(record.update.getPurchaseId());
+                    record.result.reject("Purchase could not be accepted");
+                } else {
+                    record.result.status = "accepted";
+                }
+            }
+            if (entries != null) {
+                plugin.getOutboxReplayer().submit(entries);
+            }
+        }
+    }
+
+    private static boolean isBlank(byte[] body, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = body[i];
+            if (b != ' ' && b != '\t' && b != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // -1 when the client did not declare a length
+    private static long contentLength(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static class BatchResult {
+        private final int index;
+        private String purchaseId;
+        private String status;
+        private String error;
+
+        private BatchResult(int index) {
+            this.index = index;
+        }
+
+        private void reject(String error) {
+            this.status = "rejected";
+            this.error = error;
+        }
+
+        private static byte[] toJson(List<BatchResult> results) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * results.size() + 2);
+            try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8))) {
+                writer.beginArray();
+                for (BatchResult result : results) {
+                    writer.beginObject().name("index").value(result.index);
+                    if (result.purchaseId != null) {
+                        writer.name("purchaseId").value(result.purchaseId);
+                    }
+                    if (result.status != null) {
+                        writer.name("status").value(result.status);
+                    }
+                    if (result.error != null) {
+                        writer.name("error").value(result.error);
+                    }
+                    writer.endObject();
+                }
+                writer.endArray();
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    // Prometheus text exposition, read-only and unauthenticated like any scrape target
+    private class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "Method Not Allowed");
+                return;
+            }
+
+            byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
             try (OutputStream os = exchange.getResponseBody()) {
-                os.write(responseBytes);
+                os.write(body);
             }
         }
     }
 
+    private static class BatchRecord {
+        private final RankUpdate update;
+        private final BatchResult result;
+
+        private BatchRecord(RankUpdate update, BatchResult result) {
+            this.update = update;
+            this.result = result;
+        }
+    }
+
+    // Returns null when the purchases could not be made durable
+    private List<OutboxJournal.Entry> journalPurchases(List<RankUpdate> updates) {
+        List<OutboxJournal.Entry> entries;
+        try {
+            entries = plugin.getOutboxJournal().appendAll(updates);
+        } catch (IOException e) {
+            logger.error("Could not journal " + updates.size() + " purchase(s)", e);
+            journalFailures.add(updates.size());
+            return null;
+        }
+        purchasesAccepted.add(updates.size());
+
+        // Informational only, the journal is what makes the purchase durable
+        for (RankUpdate update : updates) {
+            plugin.getSupabaseManager().updatePurchaseStatus(update.getPurchaseId(), "processing", "Processing rank purchase");
+        }
+        return entries;
+    }
+
+    private void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + response.length());
+        try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8))) {
+            writer.beginObject()
+                .name("status").value(statusCode)
+                .name("message").value(response)
+                .endObject();
+        }
+        sendJson(exchange, statusCode, bytes.toByteArray());
+    }
+
+    private void sendJson(HttpExchange exchange, int statusCode, byte[] responseBytes) throws IOException {
+        String path = exchange.getHttpContext().getPath();
+        responses.computeIfAbsent(path + " " + statusCode, key -> metrics.counter("ranksync_webhook_responses_total",
+            "Webhook responses by path and status code", "path=\"" + path + "\",code=\"" + statusCode + "\""))
+            .increment();
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(statusCode, responseBytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(responseBytes);
+        }
+    }
+
     public void stop() {
         if (server != null) {
             server.stop(0);
+            executor.shutdown();
             logger.info("Webhook listener stopped");
         }
     }
@@ -0,0 +1,128 @@
+package com.mcshop.ranksync;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Webhooks are signed with HMAC-SHA256 over "<timestamp>.<raw body>", hex encoded (optionally "sha256=" prefixed)
+public class WebhookSignature {
+    public static final String SIGNATURE_HEADER = "X-Webhook-Signature";
+    public static final String TIMESTAMP_HEADER = "X-Webhook-Timestamp";
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String SIGNATURE_PREFIX = "sha256=";
+    private static final int MAC_LENGTH = 32;
+
+    private final SecretKeySpec key;
+    private final long toleranceSeconds;
+    // Pooled rather than thread-local: with virtual threads every request runs on a fresh thread
+    private final Queue<MacHolder> macs = new ConcurrentLinkedQueue<>();
+
+    public WebhookSignature(String secret, long toleranceSeconds) {
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        this.toleranceSeconds = toleranceSeconds;
+    }
+
+    // Header-only check, run before any of the body is read
+    public boolean checkHeaders(String timestamp, String signature) {
+        return isFresh(timestamp) && hexOffset(signature) >= 0;
+    }
+
+    public boolean verify(String timestamp, String signature, byte[] body, int length) {
+        if (!checkHeaders(timestamp, signature)) {
+            return false;
+        }
+
+        MacHolder holder = acquire();
+        try {
+            updateTimestamp(holder.mac, timestamp);
+            holder.mac.update(body, 0, length);
+            return holder.matches(signature);
+        } finally {
+            release(holder);
+        }
+    }
+
+    private boolean isFresh(String timestamp) {
+        if (timestamp == null) {
+            return false;
+        }
+        try {
+            long sentAt = Long.parseLong(timestamp);
+            long now = System.currentTimeMillis() / 1000;
+            return Math.abs(now - sentAt) <= toleranceSeconds;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static void updateTimestamp(Mac mac, String timestamp) {
+        // The timestamp is validated as digits, so each char is a single ASCII byte
+        for (int i = 0; i < timestamp.length(); i++) {
+            mac.update((byte) timestamp.charAt(i));
+        }
+        mac.update((byte) '.');
+    }
+
+    private static int hexOffset(String signature) {
+        if (signature == null) {
+            return -1;
+        }
+        int offset = signature.startsWith(SIGNATURE_PREFIX) ? SIGNATURE_PREFIX.length() : 0;
+        return signature.length() - offset == MAC_LENGTH * 2 ? offset : -1;
+    }
+
+    private MacHolder acquire() {
+        MacHolder holder = macs.poll();
+        if (holder != null) {
+            return holder;
+        }
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return new MacHolder(mac);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is not available", e);
+        }
+    }
+
+    private void release(MacHolder holder) {
+        holder.mac.reset();
+        macs.offer(holder);
+    }
+
+    private static class MacHolder {
+        private final Mac mac;
+        private final byte[] digest = new byte[MAC_LENGTH];
+
+        private MacHolder(Mac mac) {
+            this.mac = mac;
+        }
+
+        private boolean matches(String signature) {
+            int offset = hexOffset(signature);
+            if (offset < 0) {
+                return false;
+            }
+
+            try {
+                mac.doFinal(digest, 0);
+            } catch (GeneralSecurityException e) {
+                return false;
+            }
+
+            // Constant-time compare straight against the hex characters
+            int diff = 0;
+            for (int i = 0; i < MAC_LENGTH; i++) {
+                int high = Character.digit(signature.charAt(offset + i * 2), 16);
+                int low = Character.digit(signature.charAt(offset + i * 2 + 1), 16);
+                diff |= (high | low) >>> 31;
+                diff |= ((high << 4) | low) ^ (digest[i] & 0xFF);
+            }
+            return diff == 0;
+        }
+    }
+}
@@ -24,6 +24,9 @@ CREATE TABLE IF NOT EXISTS purchases (
     rank_name TEXT NOT NULL,
     price NUMERIC NOT NULL,
     status TEXT NOT NULL CHECK (status IN ('pending', 'completed', 'failed')),
+    -- Storefront purchase id sent in the RankSync webhook, and RankSync's last status message
+    purchase_id TEXT UNIQUE,
+    message TEXT,
     created_at TIMESTAMPTZ DEFAULT NOW(),
     updated_at TIMESTAMPTZ DEFAULT NOW()
 );
@@ -40,6 +43,22 @@ CREATE TABLE IF NOT EXISTS user_ranks (
     updated_at TIMESTAMPTZ DEFAULT NOW()
 );
 
+-- Create rank_updates table (pending ranks queued by the RankSync plugin)
+CREATE TABLE IF NOT EXISTS rank_updates (
+    id BIGSERIAL PRIMARY KEY,
+    username TEXT NOT NULL,
+    rank TEXT NOT NULL,
+    purchase_id TEXT NOT NULL,
+    status TEXT NOT NULL DEFAULT 'pending',
+    created_at BIGINT NOT NULL,
+    applied_at BIGINT
+);
+
+-- Keyset pagination over a player's pending rows, in (created_at, id) order
+CREATE INDEX IF NOT EXISTS rank_updates_pending_idx
+    ON rank_updates (username, created_at, id)
+    WHERE status = 'pending';
+
 -- Create updated_at trigger function
 CREATE OR REPLACE FUNCTION update_updated_at_column()
 RETURNS TRIGGER AS $$
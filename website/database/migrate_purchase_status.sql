@@ -0,0 +1,14 @@
+-- Adds the columns RankSync writes purchase statuses to, for databases created before init.sql had them
+
+ALTER TABLE purchases ADD COLUMN IF NOT EXISTS purchase_id TEXT;
+ALTER TABLE purchases ADD COLUMN IF NOT EXISTS message TEXT;
+
+DO $$
+BEGIN
+    IF NOT EXISTS (
+        SELECT 1 FROM pg_constraint WHERE conname = 'purchases_purchase_id_key'
+    ) THEN
+        ALTER TABLE purchases ADD CONSTRAINT purchases_purchase_id_key UNIQUE (purchase_id);
+    END IF;
+END
+$$;
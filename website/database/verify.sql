@@ -33,6 +33,9 @@ CREATE TABLE IF NOT EXISTS purchases (
     rank_name TEXT NOT NULL,
     price NUMERIC NOT NULL,
     status TEXT NOT NULL CHECK (status IN ('pending', 'completed', 'failed')),
+    -- Storefront purchase id sent in the RankSync webhook, and RankSync's last status message
+    purchase_id TEXT UNIQUE,
+    message TEXT,
     created_at TIMESTAMPTZ DEFAULT NOW(),
     updated_at TIMESTAMPTZ DEFAULT NOW()
 );